@@ -0,0 +1,57 @@
+package rikka.shizuku.ktx
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.withContext
+import rikka.shizuku.ShizukuRemoteProcess
+
+/**
+ * Suspends until the remote process exits and returns its exit value.
+ *
+ * Cancelling destroys the remote process.
+ */
+suspend fun ShizukuRemoteProcess.awaitExit(): Int = destroyOnCancel {
+    waitFor()
+}
+
+/**
+ * Reads the standard output of the remote process until it is closed.
+ *
+ * The standard error is not read, a process that writes a lot to it can block until it is read
+ * from another coroutine. Cancelling destroys the remote process.
+ */
+suspend fun ShizukuRemoteProcess.readOutput(): String = destroyOnCancel {
+    inputStream.bufferedReader().use { it.readText() }
+}
+
+/**
+ * Reads the standard error of the remote process until it is closed.
+ *
+ * Cancelling destroys the remote process.
+ */
+suspend fun ShizukuRemoteProcess.readError(): String = destroyOnCancel {
+    errorStream.bufferedReader().use { it.readText() }
+}
+
+/**
+ * Runs a blocking call on [Dispatchers.IO]. The call cannot be interrupted, so on cancellation
+ * the remote process is destroyed, which ends the call on the server side.
+ */
+private suspend fun <T> ShizukuRemoteProcess.destroyOnCancel(block: ShizukuRemoteProcess.() -> T): T = coroutineScope {
+    val call = async(Dispatchers.IO) { block() }
+    try {
+        call.await()
+    } catch (e: CancellationException) {
+        withContext(NonCancellable + Dispatchers.IO) {
+            try {
+                destroy()
+            } catch (tr: Throwable) {
+                // Already gone
+            }
+        }
+        throw e
+    }
+}
@@ -0,0 +1,106 @@
+package rikka.shizuku.ktx
+
+import android.content.pm.PackageManager
+import android.os.IBinder
+import android.os.Parcel
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withContext
+import rikka.shizuku.Shizuku
+
+/**
+ * Cold flow of whether the binder of Shizuku is ready to use.
+ *
+ * Emits the current state when collected, then `true` each time the binder is received and
+ * `false` each time it dies. Listeners are registered while the flow is collected.
+ */
+fun binderStateFlow(): Flow<Boolean> = callbackFlow {
+    val received = Shizuku.OnBinderReceivedListener { trySend(true) }
+    val dead = Shizuku.OnBinderDeadListener { trySend(false) }
+
+    Shizuku.addBinderDeadListener(dead)
+    // Called at once if the binder is already received
+    Shizuku.addBinderReceivedListenerSticky(received)
+    if (!Shizuku.pingBinder()) {
+        trySend(false)
+    }
+
+    awaitClose {
+        Shizuku.removeBinderReceivedListener(received)
+        Shizuku.removeBinderDeadListener(dead)
+    }
+}.conflate().distinctUntilChanged()
+
+/**
+ * Suspends until the binder of Shizuku is received, returns at once if it is already received.
+ */
+suspend fun awaitBinder() {
+    binderStateFlow().first { it }
+}
+
+/**
+ * Suspending version of [Shizuku.requestPermission], returns the result instead of reporting it to
+ * [Shizuku.OnRequestPermissionResultListener].
+ *
+ * Returns [PackageManager.PERMISSION_GRANTED] without asking if the permission is already granted.
+ * The binder calls run on [Dispatchers.IO].
+ * Cancelling stops waiting for the result, the dialog the user sees is not dismissed.
+ *
+ * @return [PackageManager.PERMISSION_GRANTED] or [PackageManager.PERMISSION_DENIED]
+ */
+suspend fun requestPermission(requestCode: Int): Int {
+    val result = CompletableDeferred<Int>()
+    val listener = Shizuku.OnRequestPermissionResultListener { code, grantResult ->
+        if (code == requestCode) {
+            result.complete(grantResult)
+        }
+    }
+
+    // Listen before asking, the result may come back before the call returns
+    Shizuku.addRequestPermissionResultListener(listener)
+    try {
+        val granted = withContext(Dispatchers.IO) {
+            if (Shizuku.checkSelfPermission() == PackageManager.PERMISSION_GRANTED) {
+                true
+            } else {
+                Shizuku.requestPermission(requestCode)
+                false
+            }
+        }
+        if (granted) {
+            return PackageManager.PERMISSION_GRANTED
+        }
+        return result.await()
+    } finally {
+        Shizuku.removeRequestPermissionResultListener(listener)
+    }
+}
+
+/**
+ * Suspending version of [Shizuku.transactRemote], the call runs on [Dispatchers.IO].
+ *
+ * A binder call cannot be interrupted. If the coroutine is cancelled during the call, the call
+ * finishes first, so [data] and [reply] are not in use when this returns or throws.
+ */
+suspend fun transactRemote(data: Parcel, reply: Parcel?, flags: Int) {
+    withContext(Dispatchers.IO) {
+        Shizuku.transactRemote(data, reply, flags)
+    }
+}
+
+/**
+ * Calls [IBinder.transact] on [Dispatchers.IO], for binders wrapped with
+ * [rikka.shizuku.ShizukuBinderWrapper] or returned from a user service.
+ *
+ * Like [transactRemote], a call in progress finishes before cancellation takes effect.
+ */
+suspend fun IBinder.transactAwait(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+    withContext(Dispatchers.IO) {
+        transact(code, data, reply, flags)
+    }
@@ -0,0 +1,85 @@
+package rikka.shizuku.ktx
+
+import android.content.ComponentName
+import android.content.ServiceConnection
+import android.os.IBinder
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.withContext
+import rikka.shizuku.Shizuku
+
+/**
+ * Cold flow of the binder of a user service.
+ *
+ * Collecting the flow binds the service with [Shizuku.bindUserService]. The binder is emitted each
+ * time the service is connected, and `null` each time it is disconnected. When the collection ends
+ * the service is unbound with `remove = false`, the service process is left to [args] (a daemon
+ * service keeps running). Bind and unbind are binder calls and run on [Dispatchers.IO].
+ *
+ * Connections of the same user service share one connection to the server, so ending the
+ * collection also stops the other connections of [args] from receiving further events.
+ */
+fun userServiceFlow(args: Shizuku.UserServiceArgs): Flow<IBinder?> = callbackFlow {
+    val connection = object : ServiceConnection {
+
+        override fun onServiceConnected(name: ComponentName?, service: IBinder?) {
+            trySend(service)
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            trySend(null)
+        }
+    }
+
+    Shizuku.bindUserService(args, connection)
+
+    awaitClose {
+        unbindQuietly(args, connection)
+    }
+}.conflate().flowOn(Dispatchers.IO)
+
+/**
+ * Suspending version of [Shizuku.bindUserService], returns the binder of the service once it is
+ * connected.
+ *
+ * The service stays bound after this returns, unbind it with [Shizuku.unbindUserService]. If the
+ * coroutine is cancelled before the service is connected, the service is unbound with
+ * `remove = false`.
+ */
+suspend fun bindUserService(args: Shizuku.UserServiceArgs): IBinder = withContext(Dispatchers.IO) {
+    // Connections are still called on the main thread
+    val binder = CompletableDeferred<IBinder>()
+    val connection = object : ServiceConnection {
+
+        override fun onServiceConnected(name: ComponentName?, service: IBinder?) {
+            if (service != null) {
+                binder.complete(service)
+            }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+        }
+    }
+
+    Shizuku.bindUserService(args, connection)
+    try {
+        binder.await()
+    } catch (e: CancellationException) {
+        unbindQuietly(args, connection)
+        throw e
+    }
+}
+
+private fun unbindQuietly(args: Shizuku.UserServiceArgs, connection: ServiceConnection) {
+    try {
+        Shizuku.unbindUserService(args, connection, false)
+    } catch (e: IllegalStateException) {
+        // The binder of Shizuku has died, the server has dropped the connection already
+    }
+}
@@ -27,8 +27,7 @@ import androidx.annotation.NonNull;        // null 이 될 수 없는 어노테
 import androidx.annotation.Nullable;       // null 이 될 수 있는 어노테이션
 import androidx.annotation.RestrictTo;     // 라이브러리 내에서만 사용할 수 있도록 제한하는 어노테이션
 
-import java.util.ArrayList;         // 리스트 구현
-import java.util.List;              // 리스트 인터페이스
+import java.util.Arrays;            // 배열 복사 유틸리티
 import java.util.Objects;           // 객체 비교 유틸리티
 
 import moe.shizuku.server.IShizukuApplication; // Shizuku 서버 애플리케이션 인터페이스
@@ -209,13 +208,15 @@ public class Shizuku {
     // 리스너를 담기 위한 Holder 클래스. 각 리스너와 관련된 핸들러를 함께 보관.
     private static class ListenerHolder<T> {
 
-        private final T listener;      // 리스너 객체
-        private final Handler handler; // 핸들러 (리스너를 실행할 스레드 컨텍스트)
+        private final T listener;        // 리스너 객체
+        private final Handler handler;   // 핸들러 (리스너를 실행할 스레드 컨텍스트)
+        private final Runnable callback; // 인자가 없는 이벤트에서 리스너를 호출하는 Runnable, 이벤트마다 새로 만들지 않도록 미리 생성
 
         // 생성자
-        private ListenerHolder(@NonNull T listener, @Nullable Handler handler) {
+        private ListenerHolder(@NonNull T listener, @Nullable Handler handler, @Nullable Runnable callback) {
             this.listener = listener;
             this.handler = handler;
+            this.callback = callback;
         }
 
         @Override
@@ -232,10 +233,48 @@ public class Shizuku {
         }
     }
 
-    // 바인더 수신 리스너, 바인더 사망 리스너, 권한 결과 리스너를 저장하는 리스트
-    private static final List<ListenerHolder<OnBinderReceivedListener>> RECEIVED_LISTENERS = new ArrayList<>();
-    private static final List<ListenerHolder<OnBinderDeadListener>> DEAD_LISTENERS = new ArrayList<>();
-    private static final List<ListenerHolder<OnRequestPermissionResultListener>> PERMISSION_LISTENERS = new ArrayList<>();
+    // 이벤트 종류별 copy-on-write 리스너 목록.
+    // 추가/제거할 때만 배열을 새로 만들고, 이벤트를 전달할 때는 락 없이 그 시점의 배열을 순회함
+    private static class ListenerRegistry<T> {
+
+        private static final ListenerHolder<?>[] EMPTY = new ListenerHolder<?>[0];
+
+        @SuppressWarnings("unchecked")
+        private volatile ListenerHolder<T>[] holders = (ListenerHolder<T>[]) EMPTY;
+
+        // 현재 등록된 리스너 배열. 반환된 배열은 수정하지 않음
+        private ListenerHolder<T>[] get() {
+            return holders;
+        }
+
+        private synchronized void add(@NonNull ListenerHolder<T> holder) {
+            ListenerHolder<T>[] current = holders;
+            ListenerHolder<T>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = holder;
+            holders = updated;
+        }
+
+        private synchronized boolean remove(@NonNull T listener) {
+            ListenerHolder<T>[] current = holders;
+            ListenerHolder<T>[] updated = Arrays.copyOf(current, current.length);
+            int count = 0;
+            for (ListenerHolder<T> holder : current) {
+                if (holder.listener != listener) {
+                    updated[count++] = holder;
+                }
+            }
+            if (count == current.length) {
+                return false;
+            }
+            holders = Arrays.copyOf(updated, count);
+            return true;
+        }
+    }
+
+    // 바인더 수신 리스너, 바인더 사망 리스너, 권한 결과 리스너를 저장하는 목록
+    private static final ListenerRegistry<OnBinderReceivedListener> RECEIVED_LISTENERS = new ListenerRegistry<>();
+    private static final ListenerRegistry<OnBinderDeadListener> DEAD_LISTENERS = new ListenerRegistry<>();
+    private static final ListenerRegistry<OnRequestPermissionResultListener> PERMISSION_LISTENERS = new ListenerRegistry<>();
     // 메인 스레드에서 메시지를 처리하기 위한 핸들러
     private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
@@ -315,10 +354,8 @@ public class Shizuku {
                 MAIN_HANDLER.post(listener::onBinderReceived); // 메인 핸들러에서 실행
             }
         }
-        // 리스너 리스트에 추가
-        synchronized (RECEIVED_LISTENERS) {
-            RECEIVED_LISTENERS.add(new ListenerHolder<>(listener, handler));
-        }
+        // 리스너 목록에 추가
+        RECEIVED_LISTENERS.add(new ListenerHolder<>(listener, handler, listener::onBinderReceived));
     }
 
     /**
@@ -330,30 +367,30 @@ public class Shizuku {
      * @return 리스너가 제거되었는지 여부를 반환
      */
     public static boolean removeBinderReceivedListener(@NonNull OnBinderReceivedListener listener) {
-        // 리스트에서 해당 리스너 제거
-        synchronized (RECEIVED_LISTENERS) {
-            return RECEIVED_LISTENERS.removeIf(holder -> holder.listener == listener);
-        }
+        // 목록에서 해당 리스너 제거
+        return RECEIVED_LISTENERS.remove(listener);
     }
 
     // 바인더가 수신되었을 때 모든 등록된 리스너를 실행하는 메서드
     private static void scheduleBinderReceivedListeners() {
-        synchronized (RECEIVED_LISTENERS) {
-            for (ListenerHolder<OnBinderReceivedListener> holder : RECEIVED_LISTENERS) {
-                // 핸들러가 설정되어 있으면 핸들러를 통해 실행
-                if (holder.handler != null) {
-                    holder.handler.post(holder.listener::onBinderReceived);
-                } else {
-                    // 메인 스레드 또는 핸들러에서 리스너 호출
-                    if (Looper.myLooper() == Looper.getMainLooper()) {
-                        holder.listener.onBinderReceived();
-                    } else {
-                        MAIN_HANDLER.post(holder.listener::onBinderReceived);
-                    }
-                }
+        dispatchCallbacks(RECEIVED_LISTENERS.get());
+        binderReady = true; // 바인더 준비 완료 표시
+    }
+
+    // 인자가 없는 이벤트를 리스너에 전달하는 메서드.
+    // 미리 만든 Runnable을 사용하므로, 메인 스레드에서 바로 호출되는 리스너는 객체를 할당하지 않음
+    private static void dispatchCallbacks(ListenerHolder<?>[] holders) {
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        for (ListenerHolder<?> holder : holders) {
+            // 핸들러가 설정되어 있으면 핸들러를 통해 실행
+            if (holder.handler != null) {
+                holder.handler.post(holder.callback);
+            } else if (mainThread) {
+                holder.callback.run();
+            } else {
+                MAIN_HANDLER.post(holder.callback);
             }
         }
-        binderReady = true; // 바인더 준비 완료 표시
     }
 
     /**
@@ -379,9 +416,7 @@ public class Shizuku {
      * @param handler  Where the listener would be called. If null, the listener will be called in main thread.
      */
     public static void addBinderDeadListener(@NonNull OnBinderDeadListener listener, @Nullable Handler handler) {
-        synchronized (RECEIVED_LISTENERS) {
-            DEAD_LISTENERS.add(new ListenerHolder<>(listener, handler));
-        }
+        DEAD_LISTENERS.add(new ListenerHolder<>(listener, handler, listener::onBinderDead));
     }
 
     /**
@@ -392,27 +427,12 @@ public class Shizuku {
      * @return 리스너가 제거되었는지 여부
      */
     public static boolean removeBinderDeadListener(@NonNull OnBinderDeadListener listener) {
-        synchronized (RECEIVED_LISTENERS) {
-            return DEAD_LISTENERS.removeIf(holder -> holder.listener == listener);
-        }
+        return DEAD_LISTENERS.remove(listener);
     }
 
     // 바인더가 더 이상 유효하지 않을 때 모든 등록된 리스너를 실행하는 메서드
     private static void scheduleBinderDeadListeners() {
-        synchronized (RECEIVED_LISTENERS) {
-            for (ListenerHolder<OnBinderDeadListener> holder : DEAD_LISTENERS) {
-                if (holder.handler != null) {
-                    holder.handler.post(holder.listener::onBinderDead);
-                } else {
-                    if (Looper.myLooper() == Looper.getMainLooper()) {
-                        holder.listener.onBinderDead();
-                    } else {
-                        MAIN_HANDLER.post(holder.listener::onBinderDead);
-                    }
-                }
-
-            }
-        }
+        dispatchCallbacks(DEAD_LISTENERS.get());
     }
 
     /**
@@ -439,9 +459,7 @@ public class Shizuku {
      * @param handler  Where the listener would be called. If null, the listener will be called in main thread.
      */
     public static void addRequestPermissionResultListener(@NonNull OnRequestPermissionResultListener listener, @Nullable Handler handler) {
-        synchronized (RECEIVED_LISTENERS) {
-            PERMISSION_LISTENERS.add(new ListenerHolder<>(listener, handler));
-        }
+        PERMISSION_LISTENERS.add(new ListenerHolder<>(listener, handler, null));
     }
 
     /**
@@ -452,24 +470,19 @@ public class Shizuku {
      * @return If the listener is removed.
      */
     public static boolean removeRequestPermissionResultListener(@NonNull OnRequestPermissionResultListener listener) {
-        synchronized (RECEIVED_LISTENERS) {
-            return PERMISSION_LISTENERS.removeIf(holder -> holder.listener == listener);
-        }
+        return PERMISSION_LISTENERS.remove(listener);
     }
 
     // 권한 요청 결과를 각 리스너에 전달하는 메서드
     private static void scheduleRequestPermissionResultListener(int requestCode, int result) {
-        synchronized (RECEIVED_LISTENERS) {
-            for (ListenerHolder<OnRequestPermissionResultListener> holder : PERMISSION_LISTENERS) {
-                if (holder.handler != null) {
-                    holder.handler.post(() -> holder.listener.onRequestPermissionResult(requestCode, result));
-                } else {
-                    if (Looper.myLooper() == Looper.getMainLooper()) {
-                        holder.listener.onRequestPermissionResult(requestCode, result);
-                    } else {
-                        MAIN_HANDLER.post(() -> holder.listener.onRequestPermissionResult(requestCode, result));
-                    }
-                }
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        for (ListenerHolder<OnRequestPermissionResultListener> holder : PERMISSION_LISTENERS.get()) {
+            if (holder.handler != null) {
+                holder.handler.post(() -> holder.listener.onRequestPermissionResult(requestCode, result));
+            } else if (mainThread) {
+                holder.listener.onRequestPermissionResult(requestCode, result);
+            } else {
+                MAIN_HANDLER.post(() -> holder.listener.onRequestPermissionResult(requestCode, result));
             }
         }
     }
@@ -653,6 +666,11 @@ public class Shizuku {
         boolean debuggable = false;        // 디버그 가능 여부
         boolean daemon = true;             // 데몬 모드 여부
         boolean use32BitAppProcess = false;// 32비트 앱 프로세스 사용 여부
+        boolean sharedProcess = false;     // 같은 프로세스 이름을 가진 서비스와 프로세스 공유 여부
+        boolean restartOnDeath = false;    // 데몬 서비스가 죽었을 때 재시작 여부
+        int maxRestarts = 5;               // 5분 내 최대 재시작 횟수
+        boolean inProcess = false;         // 서버 프로세스 안에서 실행 여부
+        boolean standby = false;           // 다음 시작을 위해 프로세스를 미리 준비할지 여부
 
         // 컴포넌트 이름을 받아 생성자에서 초기화
         public UserServiceArgs(@NonNull ComponentName componentName) {
@@ -723,6 +741,85 @@ public class Shizuku {
             return this;
         }
 
+        /**
+         * 같은 앱의 다른 사용자 서비스와 프로세스를 공유할지 여부를 설정.
+         * Set if the service can share its process with other services of the same app.
+         * <p>Services that set this and use the same process name suffix (and the same debuggable
+         * and 32-bits options) are hosted by a single process, instead of one process per service.
+         * <p>Since the process is shared, calling {@link System#exit(int)} in the destroy method
+         * will also stop the other services in the process.
+         * <p>Servers that do not support this option will ignore it.
+         *
+         * @param sharedProcess Share process 프로세스 공유 여부
+         */
+        public UserServiceArgs sharedProcess(boolean sharedProcess) {
+            this.sharedProcess = sharedProcess;
+            return this;
+        }
+
+        /**
+         * 다음 서비스 시작을 위해 서버가 프로세스를 미리 준비해 둘지 여부를 설정.
+         * Set if the server should keep a process warm after starting the service, so that the
+         * next user service started (this one after a restart, or another one) does not pay for
+         * the runtime initialization.
+         * <p>The warm process uses memory while it waits, so only set this for services that are
+         * started often. It is stopped when no service that sets this has been started for
+         * 10 minutes. Servers that do not support this option will ignore it.
+         *
+         * @param standby Keep a process warm 프로세스 미리 준비 여부
+         */
+        public UserServiceArgs standby(boolean standby) {
+            this.standby = standby;
+            return this;
+        }
+
+        /**
+         * 데몬 서비스가 죽었을 때 서버가 재시작할지 여부를 설정.
+         * Set if the server should restart the service when its process dies. Only applies to
+         * daemon services.
+         * <p>Restarts are delayed with an exponential backoff (1s, 2s, 4s... up to 60s). If the
+         * service dies more than {@code maxRestarts} times in 5 minutes, it is not restarted again.
+         * <p>With this enabled, connections are kept when the service dies:
+         * {@link ServiceConnection#onServiceDisconnected(ComponentName)} is called, followed by
+         * {@link ServiceConnection#onServiceConnected(ComponentName, IBinder)} once the service is
+         * restarted, like a regular bound service. Servers that do not support this option will
+         * ignore it.
+         *
+         * @param restartOnDeath Restart on death 재시작 여부
+         * @param maxRestarts    Max restarts in 5 minutes 5분 내 최대 재시작 횟수
+         */
+        public UserServiceArgs restartOnDeath(boolean restartOnDeath, int maxRestarts) {
+            this.restartOnDeath = restartOnDeath;
+            this.maxRestarts = maxRestarts;
+            return this;
+        }
+
+        /**
+         * 별도 프로세스 없이 Shizuku 서버 프로세스 안에서 서비스를 실행할지 여부를 설정.
+         * Set if the service should be loaded into the Shizuku server process, instead of
+         * starting a new process for it. This makes the service start in a few milliseconds and
+         * use no extra process, and is meant for small services.
+         * <p>The service class is loaded from the apk with its own class loader, and must have a
+         * public no-arg constructor since there is no {@code Context}. Process name, debuggable
+         * and 32-bits options are ignored.
+         * <p><strong>The service shares the server process:</strong> never call
+         * {@link System#exit(int)}. The destroy method is not called, when the service is removed
+         * its threads are interrupted and calls to its binder fail. Calls run on threads of the
+         * service, not on binder threads of the server, so threads the service starts while
+         * creating or handling a call belong to it. An uncaught exception in such a thread only
+         * removes the service, and so does having more than 16 of them alive. At most 4 calls run
+         * in the service at once. A service that takes more than 5 seconds to create runs in its
+         * own process from then on. Threads the service does not start itself, such as those of
+         * shared system thread pools, are not isolated. Servers that do not support this option
+         * will ignore it.
+         *
+         * @param inProcess In process 서버 프로세스 안에서 실행 여부
+         */
+        public UserServiceArgs inProcess(boolean inProcess) {
+            this.inProcess = inProcess;
+            return this;
+        }
+
         /**
          * 64비트 장치에서 32비트 app_process를 사용할지 여부를 설정.
          * Set if the 32-bits app_process should be used on 64-bits devices.
@@ -747,6 +844,11 @@ public class Shizuku {
             options.putInt(ShizukuApiConstants.USER_SERVICE_ARG_VERSION_CODE, versionCode);
             options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_DAEMON, daemon);
             options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_USE_32_BIT_APP_PROCESS, use32BitAppProcess);
+            options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_SHARED_PROCESS, sharedProcess);
+            options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_RESTART_ON_DEATH, restartOnDeath);
+            options.putInt(ShizukuApiConstants.USER_SERVICE_ARG_MAX_RESTARTS, maxRestarts);
+            options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_IN_PROCESS, inProcess);
+            options.putBoolean(ShizukuApiConstants.USER_SERVICE_ARG_STANDBY, standby);
             options.putString(ShizukuApiConstants.USER_SERVICE_ARG_PROCESS_NAME,
                     Objects.requireNonNull(processName, "process name suffix must not be null"));
             if (tag != null) {
@@ -9,8 +9,8 @@ import android.os.RemoteException;
 
 import androidx.annotation.Nullable;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import moe.shizuku.server.IShizukuServiceConnection;
 
@@ -18,12 +18,15 @@ class ShizukuServiceConnection extends IShizukuServiceConnection.Stub {
 
     private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
-    private final Set<ServiceConnection> connections = new HashSet<>();
+    // Added and removed on the thread calling bind and unbind, iterated on the main thread
+    private final Set<ServiceConnection> connections = new CopyOnWriteArraySet<>();
     private final ComponentName componentName;
+    private final boolean restartOnDeath;
     private IBinder binder;
 
     public ShizukuServiceConnection(Shizuku.UserServiceArgs args) {
         this.componentName = args.componentName;
+        this.restartOnDeath = args.daemon && args.restartOnDeath;
     }
 
     private boolean dead = false;
@@ -46,6 +49,8 @@ class ShizukuServiceConnection extends IShizukuServiceConnection.Stub {
 
     @Override
     public void connected(IBinder binder) {
+        dead = false;
+
         MAIN_HANDLER.post(() -> {
                     for (ServiceConnection conn : connections) {
                         conn.onServiceConnected(componentName, binder);
@@ -70,6 +75,17 @@ class ShizukuServiceConnection extends IShizukuServiceConnection.Stub {
         if (dead) return;
         dead = true;
 
+        if (restartOnDeath) {
+            // The server restarts the service and calls connected again
+            MAIN_HANDLER.post(() -> {
+                        for (ServiceConnection conn : connections) {
+                            conn.onServiceDisconnected(componentName);
+                        }
+                    }
+            );
+            return;
+        }
+
         MAIN_HANDLER.post(() -> {
                     for (ServiceConnection conn : connections) {
                         conn.onServiceDisconnected(componentName);
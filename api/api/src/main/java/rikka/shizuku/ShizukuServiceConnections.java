@@ -15,24 +15,28 @@ class ShizukuServiceConnections {
     @NonNull
     static ShizukuServiceConnection get(Shizuku.UserServiceArgs args) {
         String key = args.tag != null ? args.tag : args.componentName.getClassName();
-        ShizukuServiceConnection connection = CACHE.get(key);
+        synchronized (CACHE) {
+            ShizukuServiceConnection connection = CACHE.get(key);
 
-        if (connection == null) {
-            connection = new ShizukuServiceConnection(args);
-            CACHE.put(key, connection);
+            if (connection == null) {
+                connection = new ShizukuServiceConnection(args);
+                CACHE.put(key, connection);
+            }
+            return connection;
         }
-        return connection;
     }
 
     static void remove(ShizukuServiceConnection connection) {
-        List<String> keys = new ArrayList<>();
-        for (Map.Entry<String, ShizukuServiceConnection> entry : CACHE.entrySet()) {
-            if (entry.getValue() == connection) {
-                keys.add(entry.getKey());
+        synchronized (CACHE) {
+            List<String> keys = new ArrayList<>();
+            for (Map.Entry<String, ShizukuServiceConnection> entry : CACHE.entrySet()) {
+                if (entry.getValue() == connection) {
+                    keys.add(entry.getKey());
+                }
+            }
+            for (String key : keys) {
+                CACHE.remove(key);
             }
-        }
-        for (String key : keys) {
-            CACHE.remove(key);
         }
     }
 }
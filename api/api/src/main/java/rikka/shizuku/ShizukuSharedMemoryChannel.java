@@ -0,0 +1,399 @@
+package rikka.shizuku;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One-way bulk channel between an app and its user service, backed by a {@link SharedMemory} ring.
+ * <p>
+ * The writer copies data into the ring and sends the offset and length of each chunk over a
+ * socket, the reader reads the chunk from the ring and sends back the length it has consumed so
+ * the space can be reused. The socket is only used for signaling, and the syscalls on it order the
+ * memory accesses. There is no transaction size limit.
+ * <p>
+ * Data is copied twice, into the ring by the writer and out of it by the reader. This is on
+ * purpose: the ends are exposed as {@link InputStream} and {@link OutputStream}, which work on the
+ * caller's arrays, and handing out the mapped region instead would let the writer overwrite data
+ * the reader is still using. Both copies are plain memory copies, nothing goes through the kernel
+ * or binder.
+ * <p>
+ * Single bytes from {@link OutputStream#write(int)} are signaled in batches, call
+ * {@link OutputStream#flush()} to make them visible to the reader at once. Array writes are
+ * signaled when the call returns.
+ * <p>
+ * Create a pair with {@link #createPair(String, int)}, keep one end and pass the other one to the
+ * other process as a {@link Parcelable}, for example as an argument of a method in the AIDL of the
+ * user service:
+ * <pre>
+ * ShizukuSharedMemoryChannel[] channel = ShizukuSharedMemoryChannel.createPair("dump", 4 * 1024 * 1024);
+ * service.dumpTo(channel[0]);  // the user service writes to channel[0].getOutputStream()
+ * channel[0].close();
+ * InputStream in = channel[1].getInputStream();
+ * </pre>
+ */
+@RequiresApi(27)
+public class ShizukuSharedMemoryChannel implements Parcelable, Closeable {
+
+    private static final int MESSAGE_EOF = -1;
+
+    private static final int SINGLE_BYTE_BATCH = 4096;
+
+    /**
+     * Creates a channel.
+     *
+     * @param name     Name of the shared memory, for debugging
+     * @param capacity Size of the ring in bytes
+     * @return Writer end at index 0, reader end at index 1
+     */
+    @NonNull
+    public static ShizukuSharedMemoryChannel[] createPair(@NonNull String name, int capacity) throws IOException {
+        SharedMemory memory;
+        try {
+            memory = SharedMemory.create(name, capacity);
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+
+        ParcelFileDescriptor[] sockets = ParcelFileDescriptor.createSocketPair();
+        AtomicInteger memoryRefs = new AtomicInteger(2);
+        return new ShizukuSharedMemoryChannel[]{
+                new ShizukuSharedMemoryChannel(memory, memoryRefs, sockets[0], true),
+                new ShizukuSharedMemoryChannel(memory, memoryRefs, sockets[1], false)
+        };
+    }
+
+    private final SharedMemory memory;
+    // Both ends of a new pair share the SharedMemory object
+    private final AtomicInteger memoryRefs;
+    private final ParcelFileDescriptor socket;
+    private final boolean writer;
+
+    // Guarded by this, close() unmaps it, so it is only touched while holding the lock
+    private ByteBuffer buffer;
+    private boolean closed;
+    private DataInputStream socketIn;
+    private DataOutputStream socketOut;
+    private OutputStream os;
+    private InputStream is;
+
+    private ShizukuSharedMemoryChannel(SharedMemory memory, AtomicInteger memoryRefs, ParcelFileDescriptor socket, boolean writer) {
+        this.memory = memory;
+        this.memoryRefs = memoryRefs;
+        this.socket = socket;
+        this.writer = writer;
+    }
+
+    private void ensureMapped() throws IOException {
+        if (closed) {
+            throw new IOException("channel closed");
+        }
+        if (buffer != null) {
+            return;
+        }
+
+        try {
+            buffer = writer ? memory.mapReadWrite() : memory.mapReadOnly();
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+        socketIn = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(socket.dup()));
+        socketOut = new DataOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(socket.dup()));
+    }
+
+    public boolean isWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns the stream to write to, only for the writer end. Closing the stream tells the reader
+     * that there is no more data.
+     */
+    @NonNull
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (!writer) {
+            throw new IllegalStateException("not the writer end");
+        }
+        if (os == null) {
+            ensureMapped();
+            os = new RingOutputStream();
+        }
+        return os;
+    }
+
+    /**
+     * Returns the stream to read from, only for the reader end.
+     */
+    @NonNull
+    public synchronized InputStream getInputStream() throws IOException {
+        if (writer) {
+            throw new IllegalStateException("not the reader end");
+        }
+        if (is == null) {
+            ensureMapped();
+            is = new RingInputStream();
+        }
+        return is;
+    }
+
+    /**
+     * Copies between the ring and {@code b}, fails if the channel has been closed.
+     */
+    private synchronized void copy(int position, byte[] b, int off, int len, boolean toRing) throws IOException {
+        if (closed || buffer == null) {
+            throw new IOException("channel closed");
+        }
+        ByteBuffer ring = buffer.duplicate();
+        ring.position(position);
+        if (toRing) {
+            ring.put(b, off, len);
+        } else {
+            ring.get(b, off, len);
+        }
+    }
+
+    private synchronized int capacity() throws IOException {
+        if (closed || buffer == null) {
+            throw new IOException("channel closed");
+        }
+        return buffer.capacity();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (buffer != null) {
+            SharedMemory.unmap(buffer);
+            buffer = null;
+        }
+        if (socketIn != null) {
+            socketIn.close();
+        }
+        if (socketOut != null) {
+            socketOut.close();
+        }
+        socket.close();
+        if (memoryRefs.decrementAndGet() == 0) {
+            memory.close();
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+
+        private final int capacity;
+        private final byte[] single = new byte[1];
+        private int position;
+        private int inFlight;
+        // Written to the ring but not signaled yet, always contiguous
+        private int pendingPosition;
+        private int pendingLength;
+        private boolean closed;
+
+        RingOutputStream() throws IOException {
+            capacity = capacity();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            writeToRing(single, 0, 1);
+            if (pendingLength >= SINGLE_BYTE_BATCH) {
+                signal();
+            }
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            writeToRing(b, off, len);
+            signal();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            signal();
+        }
+
+        private void writeToRing(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+
+            while (len > 0) {
+                // Take the releases that have arrived, so they do not pile up in the socket
+                while (socketIn.available() >= 4) {
+                    inFlight -= socketIn.readInt();
+                }
+
+                while (inFlight == capacity) {
+                    // Ring is full, wait for the reader to release space
+                    signal();
+                    inFlight -= socketIn.readInt();
+                }
+
+                int count = Math.min(len, Math.min(capacity - inFlight, capacity - position));
+                copy(position, b, off, count, true);
+
+                if (pendingLength == 0) {
+                    pendingPosition = position;
+                }
+                pendingLength += count;
+                inFlight += count;
+                position = (position + count) % capacity;
+                off += count;
+                len -= count;
+
+                if (position == 0) {
+                    // Wrapped around, a chunk never crosses the end of the ring
+                    signal();
+                }
+            }
+        }
+
+        private void signal() throws IOException {
+            if (pendingLength == 0) {
+                return;
+            }
+            socketOut.writeInt(pendingPosition);
+            socketOut.writeInt(pendingLength);
+            socketOut.flush();
+            pendingLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            signal();
+            socketOut.writeInt(0);
+            socketOut.writeInt(MESSAGE_EOF);
+            socketOut.flush();
+        }
+    }
+
+    private class RingInputStream extends InputStream {
+
+        private int chunkPosition;
+        private int chunkRemaining;
+        private int chunkLength;
+        private boolean eof;
+
+        private boolean nextChunk() throws IOException {
+            if (chunkLength > 0) {
+                socketOut.writeInt(chunkLength);
+                socketOut.flush();
+                chunkLength = 0;
+            }
+
+            if (eof) {
+                return false;
+            }
+
+            int position;
+            int length;
+            try {
+                position = socketIn.readInt();
+                length = socketIn.readInt();
+            } catch (EOFException e) {
+                // Writer is gone without closing the stream
+                eof = true;
+                return false;
+            }
+
+            if (length == MESSAGE_EOF) {
+                eof = true;
+                return false;
+            }
+
+            chunkPosition = position;
+            chunkRemaining = length;
+            chunkLength = length;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (chunkRemaining == 0) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, chunkRemaining);
+            copy(chunkPosition, b, off, count, false);
+
+            chunkPosition += count;
+            chunkRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunkRemaining;
+        }
+    }
+
+    protected ShizukuSharedMemoryChannel(Parcel in) {
+        memory = in.readParcelable(SharedMemory.class.getClassLoader());
+        memoryRefs = new AtomicInteger(1);
+        socket = in.readFileDescriptor();
+        writer = in.readInt() != 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(memory, flags);
+        dest.writeFileDescriptor(socket.getFileDescriptor());
+        dest.writeInt(writer ? 1 : 0);
+    }
+
+    @Override
+    public int describeContents() {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    public static final Creator<ShizukuSharedMemoryChannel> CREATOR = new Creator<ShizukuSharedMemoryChannel>() {
+        @Override
+        public ShizukuSharedMemoryChannel createFromParcel(Parcel in) {
+            return new ShizukuSharedMemoryChannel(in);
+        }
+
+        @Override
+        public ShizukuSharedMemoryChannel[] newArray(int size) {
+            return new ShizukuSharedMemoryChannel[size];
+        }
+    };
+}
@@ -6,6 +6,8 @@
 #include <android/log.h>
 #include <pthread.h>
 #include <sys/sendfile.h>
+#include <poll.h>
+#include <ctime>
 #include <functional>
 #include "logging.h"
 
@@ -57,8 +59,16 @@ struct transfer_thread_data {
     bool close_in;
     bool close_out;
     std::function<void()> function;
+    int coalesce_delay_ms;
+    int coalesce_size;
 };
 
+static int64_t uptime_millis() {
+    timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
 void transfer(int in, int out, bool close_in, bool close_out, const std::function<void()> &function) {
     char buf[8192];
     int len;
@@ -75,16 +85,81 @@ void transfer(int in, int out, bool close_in, bool close_out, const std::functio
     if (function) function();
 }
 
+/*
+ * Like transfer(), but output that keeps arriving in quick succession (logcat, find /, ...) is
+ * batched for up to delay_ms or until size_threshold bytes are buffered before it is written.
+ *
+ * A read that comes after the stream has been idle for delay_ms is written immediately, so
+ * keystroke echo and prompts are not delayed.
+ */
+void transfer_coalescing(int in, int out, bool close_in, bool close_out, const std::function<void()> &function,
+                         int delay_ms, int size_threshold) {
+    size_t threshold = size_threshold > 0 ? size_threshold : 8192;
+    size_t capacity = threshold > 8192 ? threshold : 8192;
+    auto buf = (char *) malloc(capacity);
+    int64_t last_read = 0;
+    bool eof = false;
+    ssize_t len;
+
+    while (buf && !eof && (len = TEMP_FAILURE_RETRY(read(in, buf, capacity))) > 0) {
+        size_t used = len;
+        int64_t now = uptime_millis();
+
+        // Only batch when the previous chunk was read recently, i.e. the process is producing bulk output
+        if (now - last_read < delay_ms) {
+            int64_t deadline = now + delay_ms;
+            while (used < threshold) {
+                int remaining = (int) (deadline - uptime_millis());
+                if (remaining <= 0) break;
+
+                pollfd pfd{in, POLLIN, 0};
+                if (TEMP_FAILURE_RETRY(poll(&pfd, 1, remaining)) <= 0) break;
+
+                len = TEMP_FAILURE_RETRY(read(in, buf + used, capacity - used));
+                if (len <= 0) {
+                    eof = true;
+                    break;
+                }
+                used += len;
+            }
+            now = uptime_millis();
+        }
+        last_read = now;
+
+        if (write_full(out, buf, used) == -1) {
+            //PLOGE("write");
+            break;
+        }
+    }
+
+    free(buf);
+
+    if (close_in) close(in);
+    if (close_out) close(out);
+    if (function) function();
+}
+
 static void *transfer_thread(void *_data) {
     auto data = (transfer_thread_data *) _data;
-    transfer(data->in, data->out, data->close_in, data->close_out, data->function);
+    if (data->coalesce_delay_ms > 0) {
+        transfer_coalescing(data->in, data->out, data->close_in, data->close_out, data->function,
+                            data->coalesce_delay_ms, data->coalesce_size);
+    } else {
+        transfer(data->in, data->out, data->close_in, data->close_out, data->function);
+    }
     delete data;
     return nullptr;
 }
 
 void transfer_async(int in, int out, const std::function<void()> &function, bool close_in, bool close_out) {
     pthread_t pthread;
-    auto *data = new transfer_thread_data{in, out, close_in, close_out, function};
+    auto *data = new transfer_thread_data{in, out, close_in, close_out, function, 0, 0};
+    pthread_create(&pthread, nullptr, transfer_thread, data);
+}
+
+void transfer_coalescing_async(int in, int out, int delay_ms, int size_threshold, const std::function<void()> &function) {
+    pthread_t pthread;
+    auto *data = new transfer_thread_data{in, out, true, true, function, delay_ms, size_threshold};
     pthread_create(&pthread, nullptr, transfer_thread, data);
 }
 
@@ -14,6 +14,8 @@ int restore_fd(int fd, const termios &old_termios);
 
 void transfer_async(int in, int out, const std::function<void()> &function = nullptr, bool close_in = true, bool close_out = true);
 
+void transfer_coalescing_async(int in, int out, int delay_ms, int size_threshold, const std::function<void()> &function = nullptr);
+
 int open_ptmx();
 
 #endif //PTS_H
@@ -0,0 +1,57 @@
+#include <jni.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <cstdlib>
+#include <android/log.h>
+#include "logging.h"
+
+static jlong copy(int in, int out, jlong count) {
+    char buf[8192];
+    jlong total = 0;
+    while (total < count) {
+        size_t size = count - total < (jlong) sizeof(buf) ? (size_t) (count - total) : sizeof(buf);
+        ssize_t len = TEMP_FAILURE_RETRY(read(in, buf, size));
+        if (len == 0) break;
+        if (len == -1) return -1;
+
+        ssize_t written = 0;
+        while (written < len) {
+            ssize_t n = TEMP_FAILURE_RETRY(write(out, buf + written, len - written));
+            if (n == -1) return -1;
+            written += n;
+        }
+        total += len;
+    }
+    return total;
+}
+
+/*
+ * Move up to count bytes from in to out, one of which must be a pipe, without copying them
+ * through user space. Falls back to read/write if the file system does not support splice.
+ */
+static jlong RishFileTransfer_splice(JNIEnv *env, jclass clazz, jint in, jint out, jlong count) {
+    jlong total = 0;
+    while (total < count) {
+        ssize_t len = TEMP_FAILURE_RETRY(splice(in, nullptr, out, nullptr, count - total, SPLICE_F_MOVE | SPLICE_F_MORE));
+        if (len == 0) break;
+        if (len == -1) {
+            if (errno == EINVAL && total == 0) {
+                LOGD("splice not supported, fallback to read/write");
+                len = copy(in, out, count);
+                if (len != -1) return len;
+            }
+            env->ThrowNew(env->FindClass("java/io/IOException"), strerror(errno));
+            return total;
+        }
+        total += len;
+    }
+    return total;
+}
+
+int rikka_rish_RishFileTransfer_registerNatives(JNIEnv *env) {
+    auto clazz = env->FindClass("rikka/rish/RishFileTransfer");
+    JNINativeMethod methods[] = {
+            {"splice", "(IIJ)J", (void *) RishFileTransfer_splice},
+    };
+    return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+}
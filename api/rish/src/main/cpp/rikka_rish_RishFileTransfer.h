@@ -0,0 +1,8 @@
+#ifndef RIKKA_RISH_RISHFILETRANSFER_H
+#define RIKKA_RISH_RISHFILETRANSFER_H
+
+#include <jni.h>
+
+int rikka_rish_RishFileTransfer_registerNatives(JNIEnv *env);
+
+#endif //RIKKA_RISH_RISHFILETRANSFER_H
@@ -61,7 +61,8 @@ static jintArray RishHost_startHost(
         jbyteArray envBlock, jint envc,
         jbyteArray dirBlock,
         jbyte tty,
-        jint stdin_read, jint stdout_write, jint stderr_write) {
+        jint stdin_read, jint stdout_write, jint stderr_write,
+        jint coalesce_delay_ms, jint coalesce_size) {
 
     bool in_tty = tty & ATTY_IN;
     bool out_tty = tty & ATTY_OUT;
@@ -147,14 +148,14 @@ static jintArray RishHost_startHost(
         }
 
         if (out_tty) {
-            transfer_async(ptmx, stdout_write, func);
+            transfer_coalescing_async(ptmx, stdout_write, coalesce_delay_ms, coalesce_size, func);
         } else {
-            transfer_async(stdout_pipe[0], stdout_write, func);
+            transfer_coalescing_async(stdout_pipe[0], stdout_write, coalesce_delay_ms, coalesce_size, func);
             close(stdout_pipe[1]);
         }
 
         if (!err_tty) {
-            transfer_async(stderr_pipe[0], stderr_write/*, func*/);
+            transfer_coalescing_async(stderr_pipe[0], stderr_write, coalesce_delay_ms, coalesce_size/*, func*/);
             close(stderr_pipe[1]);
         }
 
@@ -281,9 +282,9 @@ static jint RishHost_waitFor(JNIEnv *env, jclass clazz, jint pid) {
 int rikka_rish_RishHost_registerNatives(JNIEnv *env) {
     auto clazz = env->FindClass("rikka/rish/RishHost");
     JNINativeMethod methods[] = {
-            {"start",         "([BI[BI[BBIII)[I", (void *) RishHost_startHost},
-            {"setWindowSize", "(IJ)V",            (void *) RishHost_setWindowSize},
-            {"waitFor",       "(I)I",             (void *) RishHost_waitFor},
+            {"start",         "([BI[BI[BBIIIII)[I", (void *) RishHost_startHost},
+            {"setWindowSize", "(IJ)V",              (void *) RishHost_setWindowSize},
+            {"waitFor",       "(I)I",               (void *) RishHost_waitFor},
     };
     return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
 }
@@ -1,7 +1,9 @@
 package rikka.rish;
 
+import android.os.Parcel;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.util.Arrays;
 
 public class Rish {
@@ -22,6 +24,16 @@ public class Rish {
     }
 
     private void startShell(String[] args) {
+        if (RishFileTransfer.isTransferCommand(args)) {
+            startTransfer(args);
+            return;
+        }
+
+        if (args != null && args.length > 0 && "dump".equals(args[0])) {
+            startDump(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
             RishTerminal terminal = new RishTerminal(args);
             terminal.start();
@@ -35,6 +47,41 @@ public class Rish {
         }
     }
 
+    private void startTransfer(String[] args) {
+        try {
+            RishFileTransfer transfer = new RishFileTransfer(args);
+            int exitCode = transfer.run();
+            System.exit(exitCode);
+        } catch (Throwable e) {
+            System.err.println(e.getMessage());
+            System.err.flush();
+            System.exit(1);
+        }
+    }
+
+    private void startDump(String[] args) {
+        int exitCode = 0;
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            data.writeFileDescriptor(FileDescriptor.out);
+            data.writeStringArray(args);
+            if (!RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_dump), data, reply, 0)) {
+                throw new IllegalStateException("dump is not supported by the server");
+            }
+            reply.readException();
+        } catch (Throwable e) {
+            System.err.println(e.getMessage());
+            System.err.flush();
+            exitCode = 1;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+        System.exit(exitCode);
+    }
+
     public void start(String[] args) {
         Log.d(TAG, "args: " + Arrays.toString(args));
         startShell(args, false);
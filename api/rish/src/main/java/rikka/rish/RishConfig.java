@@ -11,11 +11,19 @@ public class RishConfig {
     static final int TRANSACTION_createHost = 0;
     static final int TRANSACTION_setWindowSize = 1;
     static final int TRANSACTION_getExitCode = 2;
+    static final int TRANSACTION_getFileSize = 3;
+    static final int TRANSACTION_transferFile = 4;
+    static final int TRANSACTION_dump = 5;
+
+    // Sent by the server to the callback of TRANSACTION_transferFile
+    static final int CALLBACK_transferFinished = IBinder.FIRST_CALL_TRANSACTION;
 
     private static IBinder binder;
     private static String interfaceToken;
     private static int transactionCodeStart;
     private static String libraryPath;
+    private static int outputCoalescingDelay = 4;
+    private static int outputCoalescingSize = 16384;
 
     static IBinder getBinder() {
         return binder;
@@ -29,6 +37,29 @@ public class RishConfig {
         return transactionCodeStart + code;
     }
 
+    static int getOutputCoalescingDelay() {
+        return outputCoalescingDelay;
+    }
+
+    static int getOutputCoalescingSize() {
+        return outputCoalescingSize;
+    }
+
+    /**
+     * Set how the host batches the output of remote processes before sending it to the client.
+     * <p>
+     * Output that keeps arriving in quick succession is held for up to {@code delayMillis}
+     * milliseconds, or until {@code sizeThreshold} bytes are buffered. Output that comes after
+     * the process has been quiet is sent immediately, so keystroke echo is not delayed.
+     *
+     * @param delayMillis   Max time to hold output, 0 to disable coalescing
+     * @param sizeThreshold Bytes to buffer before flushing
+     */
+    public static void setOutputCoalescing(int delayMillis, int sizeThreshold) {
+        RishConfig.outputCoalescingDelay = Math.max(delayMillis, 0);
+        RishConfig.outputCoalescingSize = Math.max(sizeThreshold, 0);
+    }
+
     public static void setLibraryPath(String path) {
         libraryPath = path;
     }
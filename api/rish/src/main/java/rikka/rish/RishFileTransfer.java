@@ -0,0 +1,337 @@
+package rikka.rish;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code rish push} and {@code rish pull}.
+ * <p>
+ * The remote side opens the file and splices it to or from a pipe, the local side does the same
+ * with the local file, so file contents never pass through the shell relay pumps.
+ * <p>
+ * The transfer call is oneway, the remote side copies on its own thread and reports the result
+ * to a callback binder. The local side gives up if the server stays silent for
+ * {@link #IDLE_TIMEOUT} while no bytes move.
+ */
+public class RishFileTransfer {
+
+    private static final String TAG = "RishFileTransfer";
+
+    static final int DIRECTION_PULL = 0;
+    static final int DIRECTION_PUSH = 1;
+
+    private static final long CHUNK_SIZE = 1 << 20;
+
+    // Time the server may stay silent while no bytes move on the pipe, long enough for --verify
+    // to hash a large file
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private static final String USAGE = "usage: rish push [--resume] [--verify] LOCAL REMOTE\n"
+            + "       rish pull [--resume] [--verify] REMOTE LOCAL";
+
+    public static boolean isTransferCommand(String[] args) {
+        return args != null && args.length > 0 && ("push".equals(args[0]) || "pull".equals(args[0]));
+    }
+
+    static String digest(FileDescriptor fd) throws ErrnoException, IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buf = new byte[65536];
+        long position = 0;
+        int len;
+        while ((len = Os.pread(fd, buf, 0, buf.length, position)) > 0) {
+            md.update(buf, 0, len);
+            position += len;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format(Locale.ENGLISH, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    static long splice(FileDescriptor in, FileDescriptor out, long count) throws IOException {
+        return splice(FileDescriptors.getFd(in), FileDescriptors.getFd(out), count);
+    }
+
+    private final int direction;
+    private final String local;
+    private final String remote;
+    private final boolean resume;
+    private final boolean verify;
+    private final boolean showProgress;
+
+    private long remoteTransferred;
+    private String remoteDigest;
+    private Throwable remoteError;
+    private volatile long localPosition;
+
+    public RishFileTransfer(String[] args) {
+        direction = "push".equals(args[0]) ? DIRECTION_PUSH : DIRECTION_PULL;
+
+        boolean resume = false;
+        boolean verify = false;
+        String first = null;
+        String second = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if ("--resume".equals(arg)) {
+                resume = true;
+            } else if ("--verify".equals(arg)) {
+                verify = true;
+            } else if (first == null) {
+                first = arg;
+            } else if (second == null) {
+                second = arg;
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+        if (first == null || second == null) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        this.resume = resume;
+        this.verify = verify;
+        this.local = direction == DIRECTION_PUSH ? first : second;
+        this.remote = direction == DIRECTION_PUSH ? second : first;
+        this.showProgress = Os.isatty(FileDescriptor.err);
+    }
+
+    public int run() throws ErrnoException, IOException, RemoteException, InterruptedException {
+        long remoteSize = requestFileSize(remote);
+        if (direction == DIRECTION_PULL && remoteSize < 0) {
+            throw new IOException(remote + ": No such file");
+        }
+
+        FileDescriptor file;
+        if (direction == DIRECTION_PULL) {
+            file = Os.open(local, OsConstants.O_RDWR | OsConstants.O_CREAT, 0644);
+        } else {
+            file = Os.open(local, OsConstants.O_RDONLY, 0);
+        }
+
+        try {
+            long offset = 0;
+            long total;
+
+            if (direction == DIRECTION_PULL) {
+                total = remoteSize;
+                if (resume) {
+                    offset = Os.fstat(file).st_size;
+                    if (offset > total) {
+                        throw new IOException(local + " is larger than " + remote + ", unable to resume");
+                    }
+                }
+                Os.ftruncate(file, offset);
+            } else {
+                total = Os.fstat(file).st_size;
+                if (resume && remoteSize > 0) {
+                    offset = remoteSize;
+                    if (offset > total) {
+                        throw new IOException(remote + " is larger than " + local + ", unable to resume");
+                    }
+                }
+            }
+
+            Os.lseek(file, offset, OsConstants.SEEK_SET);
+            transfer(file, offset, total);
+
+            if (remoteError != null) {
+                System.err.println(remoteError.getMessage());
+                return 1;
+            }
+
+            if (verify) {
+                String localDigest = digest(file);
+                if (!localDigest.equals(remoteDigest)) {
+                    System.err.println("checksum mismatch: local " + localDigest + ", remote " + remoteDigest);
+                    return 1;
+                }
+                System.err.println("sha256 " + localDigest);
+            }
+        } finally {
+            FileDescriptors.closeSilently(file);
+        }
+        return 0;
+    }
+
+    private void transfer(FileDescriptor file, long offset, long total) throws ErrnoException, IOException, InterruptedException {
+        FileDescriptor[] pipe = Os.pipe();
+        FileDescriptor localEnd = direction == DIRECTION_PULL ? pipe[0] : pipe[1];
+        FileDescriptor remoteEnd = direction == DIRECTION_PULL ? pipe[1] : pipe[0];
+
+        Thread thread = new Thread(() -> {
+            try {
+                requestTransfer(remoteEnd, offset);
+            } catch (Throwable e) {
+                Log.w(TAG, Log.getStackTraceString(e));
+                remoteError = e;
+            }
+        });
+        thread.start();
+
+        long position = offset;
+        localPosition = position;
+        try {
+            long len;
+            do {
+                if (direction == DIRECTION_PULL) {
+                    len = splice(localEnd, file, CHUNK_SIZE);
+                } else {
+                    len = splice(file, localEnd, CHUNK_SIZE);
+                }
+                position += len;
+                localPosition = position;
+                printProgress(position, total);
+            } while (len > 0);
+        } catch (IOException e) {
+            // The remote side failed, report its error instead
+            Log.w(TAG, Log.getStackTraceString(e));
+        } finally {
+            FileDescriptors.closeSilently(localEnd);
+            if (showProgress) {
+                System.err.println();
+            }
+        }
+
+        thread.join();
+
+        if (remoteError == null && direction == DIRECTION_PUSH && position != total) {
+            remoteError = new IOException("pushed " + (position - offset) + " of " + (total - offset) + " bytes");
+        } else if (remoteError == null && remoteTransferred != position - offset) {
+            remoteError = new IOException("remote transferred " + remoteTransferred + " bytes, local " + (position - offset));
+        }
+    }
+
+    private void printProgress(long position, long total) {
+        if (!showProgress) {
+            return;
+        }
+
+        int percent = total > 0 ? (int) (position * 100 / total) : 100;
+        System.err.print(String.format(Locale.ENGLISH, "\r%s %s: %3d%% (%d / %d)",
+                direction == DIRECTION_PULL ? "pull" : "push", remote, percent, position, total));
+        System.err.flush();
+    }
+
+    private long requestFileSize(String path) throws RemoteException {
+        Log.d(TAG, "requestFileSize");
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+
+        try {
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            data.writeString(path);
+            if (!RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_getFileSize), data, reply, 0)) {
+                throw new IllegalStateException("file transfer is not supported by the server");
+            }
+            reply.readException();
+            return reply.readLong();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Closes {@code pipe} once it has been sent, the remote side holds its own copy and closes it
+     * when done, which ends the local splice.
+     */
+    private void requestTransfer(FileDescriptor pipe, long offset) throws RemoteException, InterruptedException {
+        Log.d(TAG, "requestTransfer");
+
+        CountDownLatch finished = new CountDownLatch(1);
+        Binder callback = new Binder() {
+
+            @Override
+            protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+                if (code != RishConfig.CALLBACK_transferFinished) {
+                    return false;
+                }
+                try {
+                    data.readException();
+                    remoteTransferred = data.readLong();
+                    remoteDigest = data.readString();
+                } catch (Throwable e) {
+                    remoteError = e;
+                }
+                finished.countDown();
+                return true;
+            }
+        };
+        IBinder.DeathRecipient deathRecipient = () -> {
+            remoteError = new IllegalStateException("server died during transfer");
+            finished.countDown();
+        };
+
+        IBinder binder = RishConfig.getBinder();
+        Parcel data = Parcel.obtain();
+        try {
+            binder.linkToDeath(deathRecipient, 0);
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            // First, so the server can report any later failure to it
+            data.writeStrongBinder(callback);
+            data.writeString(remote);
+            data.writeInt(direction);
+            data.writeLong(offset);
+            data.writeInt(verify ? 1 : 0);
+            data.writeFileDescriptor(pipe);
+            binder.transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_transferFile), data, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            unlinkToDeathSilently(binder, deathRecipient);
+            throw e;
+        } finally {
+            data.recycle();
+            FileDescriptors.closeSilently(pipe);
+        }
+
+        try {
+            long lastPosition = localPosition;
+            while (!finished.await(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                long position = localPosition;
+                if (position == lastPosition) {
+                    // The local side may be blocked on the pipe, which cannot be interrupted
+                    System.err.println();
+                    System.err.println(remote + ": no response from the server in " + IDLE_TIMEOUT / 1000 + " seconds");
+                    System.err.flush();
+                    System.exit(1);
+                }
+                lastPosition = position;
+            }
+        } finally {
+            unlinkToDeathSilently(binder, deathRecipient);
+        }
+    }
+
+    private static void unlinkToDeathSilently(IBinder binder, IBinder.DeathRecipient deathRecipient) {
+        try {
+            binder.unlinkToDeath(deathRecipient, 0);
+        } catch (RuntimeException ignored) {
+            // Not linked, or the binder has died
+        }
+    }
+
+    private static native long splice(int in, int out, long count) throws IOException;
+}
@@ -91,7 +91,8 @@ public class RishHost {
                 argBlock, args.length,
                 envBlock, env != null ? env.length : -1,
                 dirBlock,
-                tty, stdin, stdout, stderr);
+                tty, stdin, stdout, stderr,
+                RishConfig.getOutputCoalescingDelay(), RishConfig.getOutputCoalescingSize());
 
         pid = result[0];
         ptmx = result[1];
@@ -117,7 +118,8 @@ public class RishHost {
             byte[] argBlock, int argc,
             byte[] envBlock, int envc,
             byte[] dirBlock,
-            byte tty, int stdin, int stdout, int stderr);
+            byte tty, int stdin, int stdout, int stderr,
+            int coalesceDelayMillis, int coalesceSize);
 
     private static native void setWindowSize(int ptmx, long size);
 
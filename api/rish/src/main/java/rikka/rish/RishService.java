@@ -4,14 +4,25 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class RishService {
 
@@ -21,6 +32,18 @@ public abstract class RishService {
 
     private static final boolean IS_ROOT = Os.getuid() == 0;
 
+    private static final int MAX_TRANSFERS = 3;
+
+    private static final ThreadPoolExecutor TRANSFER_EXECUTOR;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        TRANSFER_EXECUTOR = new ThreadPoolExecutor(
+                MAX_TRANSFERS, MAX_TRANSFERS, 30, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> new Thread(r, "RishTransfer-" + count.incrementAndGet()));
+        TRANSFER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private void createHost(
             String[] args, String[] env, String dir,
             byte tty,
@@ -79,8 +102,125 @@ public abstract class RishService {
         return host.getExitCode();
     }
 
+    private long getFileSize(String path) throws ErrnoException {
+        StructStat stat;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOENT) {
+                return -1;
+            }
+            throw e;
+        }
+
+        if (OsConstants.S_ISDIR(stat.st_mode)) {
+            throw new ErrnoException("stat", OsConstants.EISDIR);
+        }
+        return stat.st_size;
+    }
+
+    /**
+     * Copies between the file and the pipe on one of {@link #MAX_TRANSFERS} transfer threads, so
+     * that a long transfer does not take a binder thread of the server. The result is sent to
+     * {@code callback} when it finishes. Above the limit, the transfer fails at once.
+     */
+    private void transferFile(
+            String path, int direction, long offset, boolean verify,
+            ParcelFileDescriptor pipe, IBinder callback) {
+
+        Log.d(TAG, "transferFile " + path + " direction=" + direction + " offset=" + offset);
+
+        try {
+            TRANSFER_EXECUTOR.execute(() -> {
+                Parcel result = Parcel.obtain();
+                try {
+                    transferFile(path, direction, offset, verify, pipe, result);
+                    callback.transact(RishConfig.CALLBACK_transferFinished, result, null, IBinder.FLAG_ONEWAY);
+                } catch (Throwable e) {
+                    Log.w(TAG, "transferFile " + path, e);
+                } finally {
+                    result.recycle();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeSilently(pipe);
+            sendTransferError(callback, new IllegalStateException("too many transfers in progress, try again later"));
+        }
+    }
+
+    private static void sendTransferError(IBinder callback, Exception e) {
+        Parcel result = Parcel.obtain();
+        try {
+            result.writeException(e);
+            callback.transact(RishConfig.CALLBACK_transferFinished, result, null, IBinder.FLAG_ONEWAY);
+        } catch (Throwable tr) {
+            Log.w(TAG, "sendTransferError", tr);
+        } finally {
+            result.recycle();
+        }
+    }
+
+    private static void closeSilently(@Nullable ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void transferFile(
+            String path, int direction, long offset, boolean verify,
+            ParcelFileDescriptor pipe, Parcel reply) {
+
+        FileDescriptor file = null;
+        try {
+            long transferred;
+            if (direction == RishFileTransfer.DIRECTION_PULL) {
+                file = Os.open(path, OsConstants.O_RDONLY, 0);
+                Os.lseek(file, offset, OsConstants.SEEK_SET);
+                transferred = RishFileTransfer.splice(file, pipe.getFileDescriptor(), Long.MAX_VALUE);
+            } else {
+                file = Os.open(path, OsConstants.O_RDWR | OsConstants.O_CREAT, 0644);
+                Os.ftruncate(file, offset);
+                Os.lseek(file, offset, OsConstants.SEEK_SET);
+                transferred = RishFileTransfer.splice(pipe.getFileDescriptor(), file, Long.MAX_VALUE);
+                Os.fsync(file);
+            }
+
+            String digest = verify ? RishFileTransfer.digest(file) : null;
+
+            reply.writeNoException();
+            reply.writeLong(transferred);
+            reply.writeString(digest);
+        } catch (ErrnoException | IOException | RuntimeException e) {
+            Log.w(TAG, "transferFile " + path, e);
+            reply.writeException(new IllegalStateException(path + ": " + e.getMessage()));
+        } finally {
+            FileDescriptors.closeSilently(file);
+            try {
+                pipe.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void dump(ParcelFileDescriptor out, String[] args) {
+        try (PrintWriter pw = new PrintWriter(new ParcelFileDescriptor.AutoCloseOutputStream(out))) {
+            onDump(pw, args);
+        }
+    }
+
     public abstract void enforceCallingPermission(String func);
 
+    /**
+     * Writes the state of the server for {@code rish dump}, after the caller has been checked with
+     * {@link #enforceCallingPermission(String)}.
+     */
+    public void onDump(PrintWriter pw, String[] args) {
+    }
+
     public boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) {
         if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_createHost)) {
             Log.d(TAG, "TRANSACTION_createHost");
@@ -132,6 +272,76 @@ public abstract class RishService {
                 reply.writeInt(exitCode);
             }
             return true;
+        } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_getFileSize)) {
+            Log.d(TAG, "TRANSACTION_getFileSize");
+
+            enforceCallingPermission("getFileSize");
+
+            if (reply == null || (flags & IBinder.FLAG_ONEWAY) != 0) {
+                return true;
+            }
+
+            data.enforceInterface(RishConfig.getInterfaceToken());
+            String path = data.readString();
+            try {
+                long size = getFileSize(path);
+                reply.writeNoException();
+                reply.writeLong(size);
+            } catch (ErrnoException e) {
+                reply.writeException(new IllegalStateException(path + ": " + e.getMessage()));
+            }
+            return true;
+        } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_transferFile)) {
+            Log.d(TAG, "TRANSACTION_transferFile");
+
+            // Oneway, so every failure after the callback is read goes to the callback, or the
+            // client would wait for nothing
+            IBinder callback;
+            try {
+                data.enforceInterface(RishConfig.getInterfaceToken());
+                callback = data.readStrongBinder();
+            } catch (Throwable e) {
+                Log.w(TAG, "transferFile", e);
+                return true;
+            }
+            if (callback == null) {
+                return true;
+            }
+
+            ParcelFileDescriptor pipe = null;
+            try {
+                enforceCallingPermission("transferFile");
+
+                String path = data.readString();
+                int direction = data.readInt();
+                long offset = data.readLong();
+                boolean verify = data.readInt() != 0;
+                pipe = data.readFileDescriptor();
+                if (pipe == null) {
+                    throw new IllegalArgumentException("pipe is null");
+                }
+                transferFile(path, direction, offset, verify, pipe, callback);
+            } catch (RuntimeException e) {
+                closeSilently(pipe);
+                sendTransferError(callback, e);
+            }
+            if (reply != null) {
+                reply.writeNoException();
+            }
+            return true;
+        } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_dump)) {
+            Log.d(TAG, "TRANSACTION_dump");
+
+            enforceCallingPermission("dump");
+
+            data.enforceInterface(RishConfig.getInterfaceToken());
+            ParcelFileDescriptor out = data.readFileDescriptor();
+            String[] args = data.createStringArray();
+            dump(out, args);
+            if (reply != null) {
+                reply.writeNoException();
+            }
+            return true;
         }
         return false;
     }
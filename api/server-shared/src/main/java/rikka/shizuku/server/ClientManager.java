@@ -37,6 +37,12 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
         }
     }
 
+    public List<ClientRecord> getClients() {
+        synchronized (clientRecords) {
+            return new ArrayList<>(clientRecords);
+        }
+    }
+
     public ClientRecord findClient(int uid, int pid) {
         for (ClientRecord clientRecord : clientRecords) {
             if (clientRecord.pid == pid && clientRecord.uid == uid) {
@@ -66,8 +72,10 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
         ClientRecord clientRecord = new ClientRecord(uid, pid, client, packageName, apiVersion);
 
         ConfigPackageEntry entry = configManager.find(uid);
-        if (entry != null && entry.isAllowed()) {
-            clientRecord.allowed = true;
+        if (entry != null) {
+            clientRecord.allowed = entry.isAllowed();
+        } else {
+            clientRecord.allowed = isAllowedWithoutConfig(uid);
         }
 
         IBinder binder = client.asBinder();
@@ -82,6 +90,27 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
         clientRecords.add(clientRecord);
         return clientRecord;
     }
+
+    /**
+     * Whether a client that has no config entry is allowed, false by default.
+     */
+    protected boolean isAllowedWithoutConfig(int uid) {
+        return false;
+    }
+
+    /**
+     * Updates {@link ClientRecord#allowed} of attached clients from the config, for example after
+     * the config has been rebuilt. Clients without a config entry are left as they are.
+     */
+    public void refreshAllowed() {
+        for (ClientRecord clientRecord : getClients()) {
+            ConfigPackageEntry entry = configManager.find(clientRecord.uid);
+            if (entry != null && clientRecord.allowed != entry.isAllowed()) {
+                LOGGER.i("Permission of %s (uid %d) is now %s", clientRecord.packageName, clientRecord.uid, Boolean.toString(entry.isAllowed()));
+                clientRecord.allowed = entry.isAllowed();
+            }
+        }
+    }
 }
 
 
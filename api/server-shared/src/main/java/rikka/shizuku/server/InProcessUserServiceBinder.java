@@ -0,0 +1,146 @@
+package rikka.shizuku.server;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Binder handed to clients for a user service loaded into the server process.
+ * <p>
+ * A local binder never dies, so clients cannot tell from the binder itself that the service is
+ * gone. Transactions are forwarded to the service until {@link #destroy()}, and fail after that.
+ * <p>
+ * Transactions run on call threads that belong to the thread group of the service, not on the
+ * binder threads of the server, with the calling identity of the client. Threads the service
+ * starts while handling a call are therefore in its group too: an uncaught exception in them
+ * removes the service, and they are counted in the limits.
+ * <p>
+ * This is also where the limits of an in-process service are enforced. At most
+ * {@link #MAX_CONCURRENT_CALLS} calls run in the service at once, so it cannot take all binder
+ * threads of the server. A service that has more than {@link #MAX_THREADS} threads alive in its
+ * group, idle call threads included, is removed.
+ */
+class InProcessUserServiceBinder extends Binder {
+
+    private static final Logger LOGGER = new Logger("InProcessUserService");
+
+    static final int MAX_CONCURRENT_CALLS = 4;
+    static final int MAX_THREADS = 16;
+
+    private static final long CALL_THREAD_KEEP_ALIVE = 30 * 1000;
+
+    private final UserServiceRecord record;
+    private final IBinder service;
+    private final String descriptor;
+    private final ThreadGroup group;
+    private final Semaphore calls = new Semaphore(MAX_CONCURRENT_CALLS);
+    private final ThreadPoolExecutor executor;
+    private volatile boolean destroyed;
+
+    InProcessUserServiceBinder(UserServiceRecord record, IBinder service, String descriptor, ThreadGroup group) {
+        this.record = record;
+        this.service = service;
+        this.descriptor = descriptor;
+        this.group = group;
+
+        AtomicInteger count = new AtomicInteger();
+        // Never queues or rejects, the semaphore lets at most as many calls in as there are threads
+        this.executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_CALLS, MAX_CONCURRENT_CALLS, CALL_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(group, r, group.getName() + "-call-" + count.incrementAndGet()));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Nullable
+    @Override
+    public String getInterfaceDescriptor() {
+        return descriptor;
+    }
+
+    @Nullable
+    @Override
+    public IInterface queryLocalInterface(@NonNull String descriptor) {
+        // Calls from the server itself go through onTransact too
+        return null;
+    }
+
+    @Override
+    protected boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
+        if (destroyed) {
+            throw new IllegalStateException("user service " + record.key + " is removed");
+        }
+
+        if (group.activeCount() > MAX_THREADS) {
+            LOGGER.w("Service record %s (%s) has more than %d threads, removing", record.key, record.token, MAX_THREADS);
+            record.removeSelf();
+            throw new IllegalStateException("user service " + record.key + " is removed");
+        }
+
+        if (!calls.tryAcquire()) {
+            throw new IllegalStateException("too many concurrent calls to user service " + record.key);
+        }
+        try {
+            // The token carries the uid and pid of the client, so the service sees the same
+            // Binder.getCallingUid() as it would on a binder thread
+            long callingIdentity = Binder.clearCallingIdentity();
+            Binder.restoreCallingIdentity(callingIdentity);
+
+            Future<Boolean> result = executor.submit(() -> {
+                long identity = Binder.clearCallingIdentity();
+                Binder.restoreCallingIdentity(callingIdentity);
+                try {
+                    return service.transact(code, data, reply, flags);
+                } finally {
+                    Binder.restoreCallingIdentity(identity);
+                }
+            });
+            // Wait even for oneway calls, data and reply belong to this binder thread
+            return result.get();
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("user service " + record.key + " is removed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while calling user service " + record.key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            calls.release();
+        }
+    }
+
+    /**
+     * Fails all later transactions and interrupts the threads of the service. The destroy
+     * transaction is not sent, a service ending it with {@link System#exit(int)} would stop the
+     * server.
+     */
+    void destroy() {
+        destroyed = true;
+        executor.shutdownNow();
+        group.interrupt();
+    }
+}
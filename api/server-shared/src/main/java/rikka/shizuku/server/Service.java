@@ -14,7 +14,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 import moe.shizuku.server.IRemoteProcess;
@@ -54,6 +56,11 @@ public abstract class Service<
             public void enforceCallingPermission(String func) {
                 Service.this.enforceCallingPermission(func);
             }
+
+            @Override
+            public void onDump(PrintWriter pw, String[] args) {
+                Service.this.onDump(pw, args);
+            }
         };
     }
 
@@ -79,6 +86,31 @@ public abstract class Service<
         return false;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        int callingUid = Binder.getCallingUid();
+        int callingPid = Binder.getCallingPid();
+        if (callingUid != OsUtils.getUid() && !checkCallerManagerPermission("dump", callingUid, callingPid)) {
+            pw.println("Permission Denial: dump from pid=" + callingPid + " is not manager");
+            return;
+        }
+
+        onDump(pw, args);
+    }
+
+    /**
+     * Writes the state of the server. Reached from {@link #dump} by the manager, and from
+     * {@code rish dump} by clients that have the permission. User service tokens are only
+     * written for root, the server itself and the manager.
+     */
+    protected void onDump(PrintWriter pw, String[] args) {
+        int callingUid = Binder.getCallingUid();
+        boolean includeTokens = callingUid == 0
+                || callingUid == OsUtils.getUid()
+                || checkCallerManagerPermission("dump", callingUid, Binder.getCallingPid());
+        userServiceManager.dump(pw, includeTokens);
+    }
+
     public final void enforceManagerPermission(String func) {
         int callingUid = Binder.getCallingUid();
         int callingPid = Binder.getCallingPid();
@@ -3,6 +3,7 @@ package rikka.shizuku.server;
 import android.app.ActivityThread;
 import android.content.Context;
 import android.content.ContextHidden;
+import android.content.pm.ApplicationInfo;
 import android.ddm.DdmHandleAppName;
 import android.os.Build;
 import android.os.IBinder;
@@ -13,20 +14,129 @@ import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
 
+import dalvik.system.PathClassLoader;
 import dev.rikka.tools.refine.Refine;
 
 public class UserService {
 
+    /**
+     * Keep reading args from stdin after the first service, and host a service for each of them
+     * in this process.
+     */
+    public static final String ARG_SHARED_PROCESS = "--shared-process";
+
     private static String TAG;
 
+    private static Context systemContext;
+
+    private static BufferedReader stdin;
+
     public static void setTag(String tag) {
         UserService.TAG = tag;
     }
 
+    public static String[] createArgs(String token, String packageName, String classname, int callingUid, @Nullable String debugName) {
+        List<String> args = new ArrayList<>();
+        args.add("--token=" + token);
+        args.add("--package=" + packageName);
+        args.add("--class=" + classname);
+        args.add("--uid=" + callingUid);
+        if (debugName != null) {
+            args.add("--debug-name=" + debugName);
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Does the part of the start that does not depend on the service, so a standby process
+     * only has to load the service class once it is assigned.
+     */
+    public static void prepare() {
+        if (systemContext == null) {
+            systemContext = ActivityThread.systemMain().getSystemContext();
+        }
+    }
+
+    /**
+     * Blocks until the args of a service are written to stdin, one per line and terminated by an
+     * empty line. Returns null if stdin is closed before that, which means no more services will
+     * be started in this process.
+     */
+    @Nullable
+    public static synchronized String[] awaitArgs() {
+        List<String> args = new ArrayList<>();
+        try {
+            if (stdin == null) {
+                stdin = new BufferedReader(new InputStreamReader(System.in));
+            }
+
+            String line;
+            while ((line = stdin.readLine()) != null) {
+                if (line.isEmpty()) {
+                    return args.toArray(new String[0]);
+                }
+                args.add(line);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read args", e);
+        }
+        return null;
+    }
+
+    /**
+     * Loads a service into the calling process, used for services that run inside the server.
+     * The class loader only has the boot class path as parent, so the service cannot see the
+     * classes of the caller. There is no Context, the service must have a no-arg constructor.
+     */
+    public static IBinder createInProcess(ApplicationInfo ai, String cls, @Nullable long[] trace) throws ReflectiveOperationException {
+        StringBuilder classPath = new StringBuilder(ai.sourceDir);
+        if (ai.splitSourceDirs != null) {
+            for (String split : ai.splitSourceDirs) {
+                classPath.append(File.pathSeparatorChar).append(split);
+            }
+        }
+
+        ClassLoader classLoader = new PathClassLoader(classPath.toString(), ai.nativeLibraryDir, ClassLoader.getSystemClassLoader().getParent());
+        markPhase(trace, UserServiceStartTrace.PHASE_PACKAGE_CONTEXT);
+        Class<?> serviceClass = classLoader.loadClass(cls);
+        markPhase(trace, UserServiceStartTrace.PHASE_CLASS_LOADED);
+        IBinder service = (IBinder) serviceClass.getConstructor().newInstance();
+        markPhase(trace, UserServiceStartTrace.PHASE_INSTANTIATED);
+        return service;
+    }
+
+    private static void markPhase(@Nullable long[] trace, int phase) {
+        if (trace != null) {
+            UserServiceStartTrace.mark(trace, phase);
+        }
+    }
+
+    public static void setProcessName(String name) {
+        try {
+            android.os.Process.class.getDeclaredMethod("setArgV0", String.class).invoke(null, name);
+        } catch (Throwable tr) {
+            Log.w(TAG, "setArgV0 " + name, tr);
+        }
+    }
+
     @Nullable
     public static Pair<IBinder, String> create(String[] args) {
+        return create(args, null);
+    }
+
+    /**
+     * @param trace If not null, the phases of {@link UserServiceStartTrace} done here are recorded
+     */
+    @Nullable
+    public static Pair<IBinder, String> create(String[] args, @Nullable long[] trace) {
         String name = null;
         String token = null;
         String pkg = null;
@@ -54,7 +164,8 @@ public class UserService {
         IBinder service;
 
         try {
-            Context systemContext = ActivityThread.systemMain().getSystemContext();
+            prepare();
+            markPhase(trace, UserServiceStartTrace.PHASE_SYSTEM_CONTEXT);
 
             DdmHandleAppName.setAppName(name != null ? name : pkg + ":user_service", 0);
 
@@ -64,8 +175,10 @@ public class UserService {
                             ? UserHandleHidden.of(userId)
                             : new UserHandleHidden(userId));
             Context context = Refine.<ContextHidden>unsafeCast(systemContext).createPackageContextAsUser(pkg, Context.CONTEXT_INCLUDE_CODE | Context.CONTEXT_IGNORE_SECURITY, userHandle);
+            markPhase(trace, UserServiceStartTrace.PHASE_PACKAGE_CONTEXT);
             ClassLoader classLoader = context.getClassLoader();
             Class<?> serviceClass = classLoader.loadClass(cls);
+            markPhase(trace, UserServiceStartTrace.PHASE_CLASS_LOADED);
             Constructor<?> constructorWithContext = null;
             try {
                 constructorWithContext = serviceClass.getConstructor(Context.class);
@@ -76,6 +189,7 @@ public class UserService {
             } else {
                 service = (IBinder) serviceClass.newInstance();
             }
+            markPhase(trace, UserServiceStartTrace.PHASE_INSTANTIATED);
         } catch (Throwable tr) {
             Log.w(TAG, String.format("unable to start service %s/%s...", pkg, cls), tr);
             return null;
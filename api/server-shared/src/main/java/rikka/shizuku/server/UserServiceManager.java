@@ -7,43 +7,92 @@ import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_NO_CREATE;
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_PROCESS_NAME;
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_REMOVE;
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_TAG;
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_IN_PROCESS;
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_MAX_RESTARTS;
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_RESTART_ON_DEATH;
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_SHARED_PROCESS;
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_STANDBY;
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_USE_32_BIT_APP_PROCESS;
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_VERSION_CODE;
 
 import android.annotation.SuppressLint;
 import android.content.ComponentName;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import moe.shizuku.server.IShizukuServiceConnection;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.shizuku.server.util.AbiUtil;
+import rikka.shizuku.server.util.HandlerUtil;
 import rikka.shizuku.server.util.Logger;
+import rikka.shizuku.server.util.OsUtils;
 import rikka.shizuku.server.util.UserHandleCompat;
 
 public abstract class UserServiceManager {
 
     protected static final Logger LOGGER = new Logger("UserServiceManager");
 
-    private final Executor executor = Executors.newSingleThreadExecutor();
-    private final Map<String, UserServiceRecord> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
-    private final Map<String, List<UserServiceRecord>> packageUserServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
+    private static final long START_TIMEOUT = 30 * DateUtils.SECOND_IN_MILLIS;
+    private static final int DEFAULT_MAX_RESTARTS = 5;
+    private static final long IN_PROCESS_CREATE_TIMEOUT = 5 * DateUtils.SECOND_IN_MILLIS;
+    private static final long TRIM_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
+    private static final long EVICT_KILL_DELAY = 5 * DateUtils.SECOND_IN_MILLIS;
+    private static final long STANDBY_IDLE_TIMEOUT = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    // While the user service processes use more than this in total, processes that only host
+    // non-daemon services idle for IDLE_TIMEOUT are stopped, least recently active first. Clients
+    // receive onServiceDisconnected and will get a new process on the next bind.
+    private static final long MEMORY_BUDGET_KB = 256 * 1024;
+    private static final long IDLE_TIMEOUT = 10 * DateUtils.MINUTE_IN_MILLIS;
+    // CPU time a process must use in one TRIM_INTERVAL to count as serving calls, GC and JIT alone
+    // stay well below it
+    private static final long ACTIVE_CPU_TIME = 200;
+
+    private static final int MAX_PARALLEL_STARTS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_PARALLEL_STARTS, MAX_PARALLEL_STARTS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final UserServiceRegistry userServiceRecords = new UserServiceRegistry();
+    private final Map<String, StartTask> pendingStarts = new ArrayMap<>();
+    private final Map<UserServiceRecord, StartTask> restartTasks = new ArrayMap<>();
+    private final UserServiceStartStats startStats = new UserServiceStartStats();
+    private final Object standbyLock = new Object();
+    private java.lang.Process standbyProcess;
+    private long standbyRequestTime;
+    private final Runnable stopIdleStandbyRunnable = this::stopIdleStandbyProcess;
+    private final Map<String, java.lang.Process> sharedProcesses = new ArrayMap<>();
+    private final Set<String> inProcessTimedOut = new ArraySet<>();
+    private boolean trimScheduled;
+    private Map<java.lang.Process, Long> cpuTimes = new ArrayMap<>();
 
     public UserServiceManager() {
+        executor.allowCoreThreadTimeOut(true);
     }
 
     public PackageInfo ensureCallingPackageForUserService(String packageName, int appId, int userId) {
@@ -92,7 +141,8 @@ public abstract class UserServiceManager {
     }
 
     private void removeUserServiceLocked(UserServiceRecord record) {
-        if (userServiceRecords.values().remove(record)) {
+        if (userServiceRecords.remove(record)) {
+            restartTasks.remove(record);
             record.destroy();
             onUserServiceRecordRemoved(record);
         }
@@ -120,45 +170,62 @@ public abstract class UserServiceManager {
         boolean noCreate = options.getBoolean(USER_SERVICE_ARG_NO_CREATE, false);
         boolean daemon = options.getBoolean(USER_SERVICE_ARG_DAEMON, true);
         boolean use32Bits = options.getBoolean(USER_SERVICE_ARG_USE_32_BIT_APP_PROCESS, false);
+        boolean sharedProcess = options.getBoolean(USER_SERVICE_ARG_SHARED_PROCESS, false);
+        boolean restartOnDeath = options.getBoolean(USER_SERVICE_ARG_RESTART_ON_DEATH, false);
+        int maxRestarts = options.getInt(USER_SERVICE_ARG_MAX_RESTARTS, DEFAULT_MAX_RESTARTS);
+        boolean inProcess = options.getBoolean(USER_SERVICE_ARG_IN_PROCESS, false);
+        boolean standby = options.getBoolean(USER_SERVICE_ARG_STANDBY, false);
         String key = packageName + ":" + (tag != null ? tag : className);
 
-        synchronized (this) {
-            UserServiceRecord record = getUserServiceRecordLocked(key);
-            if (noCreate) {
-                if (record != null) {
-                    record.callbacks.register(conn);
-
-                    if (record.service != null && record.service.pingBinder()) {
-                        record.broadcastBinderReceived();
-
-                        if (callingApiVersion >= 13) {
-                            return record.versionCode;
-                        } else {
-                            return 0;
-                        }
+        if (noCreate) {
+            // Peek without the lock, a record removed meanwhile has its callbacks killed and
+            // the registration below is simply dropped
+            UserServiceRecord record = userServiceRecords.get(key);
+            if (record != null) {
+                record.callbacks.register(conn);
+                record.markActive();
+
+                if (record.isRunning()) {
+                    record.broadcastBinderReceived();
+
+                    if (callingApiVersion >= 13) {
+                        return record.versionCode;
+                    } else {
+                        return 0;
                     }
                 }
+            }
 
-                if (callingApiVersion >= 13) {
-                    return -1;
-                } else {
-                    return 1;
-                }
+            if (callingApiVersion >= 13) {
+                return -1;
             } else {
-                UserServiceRecord newRecord = createUserServiceRecordIfNeededLocked(record, key, versionCode, daemon, packageInfo);
-                newRecord.callbacks.register(conn);
-
-                if (newRecord.service != null && newRecord.service.pingBinder()) {
-                    newRecord.broadcastBinderReceived();
-                } else if (!newRecord.starting) {
-                    newRecord.setStartingTimeout(DateUtils.SECOND_IN_MILLIS * 30);
+                return 1;
+            }
+        }
 
-                    Runnable runnable = () -> startUserService(newRecord, key, newRecord.token, packageName, className, processNameSuffix, uid, use32Bits, debug);
-                    executor.execute(runnable);
-                    return 0;
+        synchronized (this) {
+            UserServiceRecord record = getUserServiceRecordLocked(key);
+            UserServiceRecord newRecord = createUserServiceRecordIfNeededLocked(record, key, versionCode, daemon, packageInfo);
+            newRecord.callbacks.register(conn);
+            newRecord.markActive();
+            newRecord.setRestartPolicy(restartOnDeath, maxRestarts);
+
+            if (newRecord.isRunning()) {
+                newRecord.broadcastBinderReceived();
+            } else if (newRecord.setStartingTimeout(START_TIMEOUT)) {
+                if (inProcess && inProcessTimedOut.contains(key)) {
+                    LOGGER.w("Service record %s timed out in the server process before, starting a process for it", key);
+                    inProcess = false;
                 }
-                return 0;
+                StartTask task = new StartTask(newRecord, key, packageName, className, processNameSuffix, uid, use32Bits, debug, sharedProcess,
+                        standby, inProcess ? packageInfo.applicationInfo : null);
+                restartTasks.put(newRecord, task);
+                scheduleStartLocked(task);
             }
+            if (!daemon) {
+                scheduleTrimLocked();
+            }
+            return 0;
         }
     }
 
@@ -172,7 +239,7 @@ public abstract class UserServiceManager {
         if (record != null) {
             if (record.versionCode != versionCode) {
                 LOGGER.v("Remove service record %s (%s) because version code not matched (old=%d, new=%d)", key, record.token, record.versionCode, versionCode);
-            } else if (!record.starting && (record.service == null || !record.service.pingBinder())) {
+            } else if (!record.isStarting() && !record.isRunning()) {
                 LOGGER.v("Service in record %s (%s) is dead", key, record.token);
             } else {
                 LOGGER.i("Found existing service record %s (%s)", key, record.token);
@@ -186,7 +253,17 @@ public abstract class UserServiceManager {
             removeUserServiceLocked(record);
         }
 
-        record = new UserServiceRecord(versionCode, daemon) {
+        record = newUserServiceRecord(key, packageInfo.packageName, versionCode, daemon, UserServiceRecord.newToken());
+
+        onUserServiceRecordCreated(record, packageInfo);
+
+        userServiceRecords.add(record);
+        LOGGER.i("New service record %s (%s): version=%d, daemon=%s, apk=%s", key, record.token, versionCode, Boolean.toString(daemon), packageInfo.applicationInfo.sourceDir);
+        return record;
+    }
+
+    private UserServiceRecord newUserServiceRecord(String key, String packageName, int versionCode, boolean daemon, String token) {
+        return new UserServiceRecord(key, packageName, versionCode, daemon, token) {
 
             @Override
             public void removeSelf() {
@@ -194,77 +271,707 @@ public abstract class UserServiceManager {
                     removeUserServiceLocked(this);
                 }
             }
+
+            @Override
+            public void restartSelf(long delayMillis) {
+                synchronized (UserServiceManager.this) {
+                    restartUserServiceLocked(this, delayMillis);
+                }
+            }
         };
+    }
 
-        String packageName = packageInfo.packageName;
-        List<UserServiceRecord> list = packageUserServiceRecords.get(packageName);
-        if (list == null) {
-            list = Collections.synchronizedList(new ArrayList<>());
-            packageUserServiceRecords.put(packageName, list);
+    private void restartUserServiceLocked(UserServiceRecord record, long delayMillis) {
+        StartTask task = restartTasks.get(record);
+        if (task == null || userServiceRecords.get(record.key) != record || !record.prepareRestart()) {
+            record.removeSelf();
+            return;
         }
-        list.add(record);
 
-        onUserServiceRecordCreated(record, packageInfo);
+        LOGGER.i("Restart service record %s (%s) in %d ms", record.key, record.token, delayMillis);
 
-        userServiceRecords.put(key, record);
-        LOGGER.i("New service record %s (%s): version=%d, daemon=%s, apk=%s", key, record.token, versionCode, Boolean.toString(daemon), packageInfo.applicationInfo.sourceDir);
-        return record;
+        // Callbacks stay registered, clients bound with restart on death keep their connections
+        // and are connected again once the new binder is received
+        record.broadcastBinderDied();
+        record.setStartingTimeout(delayMillis + START_TIMEOUT);
+
+        HandlerUtil.getMainHandler().postDelayed(() -> {
+            synchronized (UserServiceManager.this) {
+                if (userServiceRecords.get(record.key) == record && record.isStarting()) {
+                    scheduleStartLocked(task);
+                }
+            }
+        }, delayMillis);
+    }
+
+    private class StartTask implements Runnable {
+
+        private final UserServiceRecord record;
+        private final String key;
+        private final String packageName;
+        private final String className;
+        private final String processNameSuffix;
+        private final int callingUid;
+        private final boolean use32Bits;
+        private final boolean debug;
+        private final boolean sharedProcess;
+        private final boolean standby;
+        private final ApplicationInfo inProcessApplicationInfo;
+
+        private StartTask(UserServiceRecord record, String key, String packageName, String className,
+                          String processNameSuffix, int callingUid, boolean use32Bits, boolean debug, boolean sharedProcess,
+                          boolean standby, ApplicationInfo inProcessApplicationInfo) {
+            this.record = record;
+            this.key = key;
+            this.packageName = packageName;
+            this.className = className;
+            this.processNameSuffix = processNameSuffix;
+            this.callingUid = callingUid;
+            this.use32Bits = use32Bits;
+            this.debug = debug;
+            this.sharedProcess = sharedProcess;
+            this.standby = standby;
+            this.inProcessApplicationInfo = inProcessApplicationInfo;
+        }
+
+        @Override
+        public void run() {
+            synchronized (UserServiceManager.this) {
+                if (pendingStarts.get(key) != this) {
+                    LOGGER.v("Skip start of service record %s (%s), superseded by a newer request", key, record.token);
+                    return;
+                }
+                pendingStarts.remove(key);
+
+                if (getUserServiceRecordLocked(key) != record) {
+                    LOGGER.v("Skip start of service record %s (%s), removed while queued", key, record.token);
+                    return;
+                }
+            }
+
+            markStartPhase(record, UserServiceStartTrace.PHASE_DEQUEUED);
+
+            if (inProcessApplicationInfo != null) {
+                startUserServiceInProcess(record, key, record.token, inProcessApplicationInfo, className);
+                return;
+            }
+
+            startUserService(record, key, record.token, packageName, className, processNameSuffix, callingUid, use32Bits, debug, sharedProcess, standby);
+        }
+    }
+
+    private void scheduleStartLocked(StartTask task) {
+        UserServiceStartTrace trace = new UserServiceStartTrace();
+        trace.mark(UserServiceStartTrace.PHASE_REQUESTED);
+        task.record.startTrace = trace;
+
+        // A start still waiting in the queue for the same key belongs to a record that has been
+        // replaced, it will see this and return without starting anything.
+        if (pendingStarts.put(task.key, task) != null) {
+            LOGGER.v("Merged queued start for service record %s", task.key);
+        }
+        executor.execute(task);
+    }
+
+    private void startUserServiceInProcess(UserServiceRecord record, String key, String token, ApplicationInfo ai, String classname) {
+        LOGGER.v("Loading service record %s (%s) into server process...", key, token);
+
+        // Threads started by the service inherit the group, an uncaught exception in them
+        // removes the service instead of killing the server
+        ThreadGroup group = new ThreadGroup("UserService-" + key) {
+
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                LOGGER.e(e, "Uncaught exception in service record %s (%s)", key, token);
+                record.removeSelf();
+            }
+        };
+        record.threadGroup = group;
+
+        long[] trace = new long[UserServiceStartTrace.PHASE_COUNT];
+        AtomicReference<IBinder> result = new AtomicReference<>();
+        Thread thread = new Thread(group, () -> {
+            try {
+                result.set(UserService.createInProcess(ai, classname, trace));
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "Unable to load service record %s (%s)", key, token);
+            }
+        }, "UserService-" + key);
+        thread.start();
+
+        try {
+            thread.join(IN_PROCESS_CREATE_TIMEOUT);
+        } catch (InterruptedException ignored) {
+        }
+
+        IBinder service = result.get();
+        if (service == null) {
+            if (thread.isAlive()) {
+                // A thread cannot be stopped, keep it from competing with the server and never
+                // load this service into the server again
+                LOGGER.w("Service record %s (%s) is not created in %d ms", key, token, IN_PROCESS_CREATE_TIMEOUT);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                synchronized (this) {
+                    inProcessTimedOut.add(key);
+                }
+            }
+            group.interrupt();
+            record.removeSelf();
+            return;
+        }
+
+        String descriptor;
+        try {
+            descriptor = service.getInterfaceDescriptor();
+        } catch (RemoteException e) {
+            // Local binder, never happens
+            descriptor = null;
+        }
+
+        IBinder binder = new InProcessUserServiceBinder(record, service, descriptor, group);
+        synchronized (this) {
+            if (getUserServiceRecordLocked(key) == record) {
+                sendUserServiceLocked(binder, descriptor, token, trace);
+            } else {
+                group.interrupt();
+            }
+        }
     }
 
     private void startUserService(
             UserServiceRecord record, String key, String token, String packageName,
-            String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug) {
+            String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug, boolean sharedProcess,
+            boolean standby) {
+
+        use32Bits = use32Bits && AbiUtil.has32Bit();
+
+        if (!sharedProcess) {
+            java.lang.Process process = startUserServiceProcess(record, key, token, packageName, classname, processNameSuffix, callingUid, use32Bits, debug, false, standby);
+            if (process != null) {
+                record.process = process;
+                markStartPhase(record, UserServiceStartTrace.PHASE_SPAWNED);
+            } else {
+                record.removeSelf();
+            }
+            return;
+        }
+
+        // Services sharing a process are started one by one, so the second one finds the process
+        // started for the first one
+        String processKey = callingUid + ":" + packageName + ":" + processNameSuffix + ":" + use32Bits + ":" + debug;
+        synchronized (sharedProcesses) {
+            java.lang.Process process = sharedProcesses.get(processKey);
+            if (process != null && isAlive(process)
+                    && writeArgs(process, null, UserService.createArgs(token, packageName, classname, callingUid, null), false)) {
+                LOGGER.v("Service record %s (%s) joins process %s", key, token, processKey);
+                record.process = process;
+                markStartPhase(record, UserServiceStartTrace.PHASE_SPAWNED);
+                return;
+            }
+
+            process = startUserServiceProcess(record, key, token, packageName, classname, processNameSuffix, callingUid, use32Bits, debug, true, standby);
+            if (process != null) {
+                record.process = process;
+                markStartPhase(record, UserServiceStartTrace.PHASE_SPAWNED);
+                sharedProcesses.put(processKey, process);
+            } else {
+                sharedProcesses.remove(processKey);
+                record.removeSelf();
+            }
+        }
+    }
+
+    private static void markStartPhase(UserServiceRecord record, int phase) {
+        UserServiceStartTrace trace = record.startTrace;
+        if (trace != null) {
+            trace.mark(phase);
+        }
+    }
+
+    private java.lang.Process startUserServiceProcess(
+            UserServiceRecord record, String key, String token, String packageName,
+            String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug, boolean sharedProcess,
+            boolean standby) {
+
+        if (!use32Bits && !debug) {
+            java.lang.Process standbyProcess = takeStandbyProcess();
+            if (standbyProcess != null) {
+                String[] args = UserService.createArgs(token, packageName, classname, callingUid, null);
+                if (sharedProcess) {
+                    args = appendArg(args, UserService.ARG_SHARED_PROCESS);
+                }
+                if (writeArgs(standbyProcess, packageName + ":" + processNameSuffix, args, !sharedProcess)) {
+                    LOGGER.v("Assigned standby process to service record %s (%s)", key, token);
+                    if (standby) {
+                        executor.execute(this::prepareStandbyProcess);
+                    }
+                    return standbyProcess;
+                }
+                standbyProcess.destroy();
+            }
+        }
 
         LOGGER.v("Starting process for service record %s (%s)...", key, token);
 
-        String cmd = getUserServiceStartCmd(record, key, token, packageName, classname, processNameSuffix, callingUid, use32Bits && AbiUtil.has32Bit(), debug);
-        int exitCode;
+        String[] args = getUserServiceStartArgs(record, key, token, packageName, classname, processNameSuffix, callingUid, use32Bits, debug);
+        if (sharedProcess) {
+            args = appendArg(args, UserService.ARG_SHARED_PROCESS);
+        }
+        java.lang.Process process = startProcess(args, key, sharedProcess);
+        if (process == null) {
+            return null;
+        }
+
+        // Keep one process warm for a while if the service asked for it, so the next service does
+        // not pay for the runtime and system context initialization
+        if (standby) {
+            executor.execute(this::prepareStandbyProcess);
+        }
+        return process;
+    }
+
+    private static String[] appendArg(String[] args, String arg) {
+        String[] newArgs = Arrays.copyOf(args, args.length + 1);
+        newArgs[args.length] = arg;
+        return newArgs;
+    }
+
+    /**
+     * Starts a service or standby process with its output sent to /dev/null, so that the process
+     * does not depend on this server reading it and keeps running after a handoff. Only stdin is
+     * kept when {@code keepInput} is set, for {@link #writeArgs}.
+     */
+    private java.lang.Process startProcess(String[] args, String name, boolean keepInput) {
+        // ProcessBuilder.Redirect needs API 26, the shell redirects and then execs, so the process
+        // is still the one returned here
+        String[] shellArgs = new String[args.length + 3];
+        shellArgs[0] = "/system/bin/sh";
+        shellArgs[1] = "-c";
+        shellArgs[2] = "exec \"$0\" \"$@\" >/dev/null 2>&1";
+        System.arraycopy(args, 0, shellArgs, 3, args.length);
+
+        java.lang.Process process;
+        try {
+            process = new ProcessBuilder(shellArgs)
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (IOException e) {
+            LOGGER.w(e, "Failed to start process %s: %s", name, Arrays.toString(args));
+            return null;
+        }
+
+        try {
+            process.getInputStream().close();
+        } catch (IOException ignored) {
+        }
+        if (!keepInput) {
+            try {
+                process.getOutputStream().close();
+            } catch (IOException ignored) {
+            }
+        }
+        return process;
+    }
+
+    private static boolean isAlive(java.lang.Process process) {
         try {
-            java.lang.Process process = Runtime.getRuntime().exec("sh");
-            OutputStream os = process.getOutputStream();
-            os.write(cmd.getBytes());
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private java.lang.Process takeStandbyProcess() {
+        synchronized (standbyLock) {
+            java.lang.Process process = standbyProcess;
+            standbyProcess = null;
+            return process != null && isAlive(process) ? process : null;
+        }
+    }
+
+    /**
+     * Writes the args of a service to a standby or shared process, see {@link UserService#awaitArgs()}.
+     */
+    private boolean writeArgs(java.lang.Process process, String processName, String[] args, boolean close) {
+        StringBuilder sb = new StringBuilder();
+        if (processName != null) {
+            sb.append("--nice-name=").append(processName).append('\n');
+        }
+        for (String arg : args) {
+            sb.append(arg).append('\n');
+        }
+        sb.append('\n');
+
+        OutputStream os = process.getOutputStream();
+        try {
+            os.write(sb.toString().getBytes());
             os.flush();
-            os.close();
+            return true;
+        } catch (IOException e) {
+            LOGGER.w(e, "Failed to write args to process");
+            close = true;
+            return false;
+        } finally {
+            if (close) {
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
 
-            exitCode = process.waitFor();
-        } catch (Throwable e) {
-            throw new IllegalStateException(e.getMessage());
+    private void prepareStandbyProcess() {
+        String[] args = getUserServiceStandbyArgs();
+        if (args == null) {
+            return;
         }
-        if (exitCode != 0) {
-            throw new IllegalStateException("sh exited with " + exitCode);
+
+        synchronized (standbyLock) {
+            standbyRequestTime = SystemClock.elapsedRealtime();
+            HandlerUtil.getMainHandler().removeCallbacks(stopIdleStandbyRunnable);
+            HandlerUtil.getMainHandler().postDelayed(stopIdleStandbyRunnable, STANDBY_IDLE_TIMEOUT);
+
+            if (standbyProcess != null && isAlive(standbyProcess)) {
+                return;
+            }
+
+            LOGGER.v("Starting standby process...");
+            standbyProcess = startProcess(args, "standby", true);
         }
     }
 
-    public abstract String getUserServiceStartCmd(
-            UserServiceRecord record, String key, String token, String packageName,
-            String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug);
+    private void stopIdleStandbyProcess() {
+        synchronized (standbyLock) {
+            long idle = SystemClock.elapsedRealtime() - standbyRequestTime;
+            if (idle < STANDBY_IDLE_TIMEOUT) {
+                HandlerUtil.getMainHandler().postDelayed(stopIdleStandbyRunnable, STANDBY_IDLE_TIMEOUT - idle);
+                return;
+            }
 
-    private void sendUserServiceLocked(IBinder binder, String token) {
-        Map.Entry<String, UserServiceRecord> entry = null;
-        for (Map.Entry<String, UserServiceRecord> e : userServiceRecords.entrySet()) {
-            if (e.getValue().token.equals(token)) {
-                entry = e;
-                break;
+            if (standbyProcess != null) {
+                LOGGER.v("Stopping standby process, no service asked for it in %d ms", idle);
+                standbyProcess.destroy();
+                standbyProcess = null;
             }
         }
+    }
+
+    /**
+     * Returns the argv used to exec a standby process, or null to always start user services
+     * from a fresh process.
+     * <p>
+     * A standby process runs {@link UserService#prepare()} and then waits in
+     * {@link UserService#awaitArgs()}. It is only used for services that do not need a 32-bit or
+     * debuggable runtime.
+     */
+    public String[] getUserServiceStandbyArgs() {
+        return null;
+    }
 
-        if (entry == null) {
+    /**
+     * Returns the argv used to exec app_process for the user service. The process is started
+     * directly, so arguments must not be quoted.
+     */
+    public abstract String[] getUserServiceStartArgs(
+            UserServiceRecord record, String key, String token, String packageName,
+            String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug);
+
+    private void sendUserServiceLocked(IBinder binder, String descriptor, String token, long[] remoteTrace) {
+        UserServiceRecord record = userServiceRecords.getByToken(token);
+        if (record == null) {
             throw new IllegalArgumentException("unable to find token " + token);
         }
 
         LOGGER.v("Received binder for service record %s", token);
 
-        UserServiceRecord record = entry.getValue();
-        record.setBinder(binder);
+        UserServiceStartTrace trace = record.startTrace;
+        if (trace != null && record.isStarting()) {
+            trace.merge(remoteTrace);
+            trace.mark(UserServiceStartTrace.PHASE_ATTACHED);
+            startStats.add(record.packageName, trace);
+            LOGGER.i("Service record %s (%s) started: %s", record.key, token, trace);
+        }
+
+        record.setBinder(binder, descriptor);
     }
 
     public void attachUserService(IBinder binder, Bundle options) {
         Objects.requireNonNull(binder, "binder is null");
         String token = Objects.requireNonNull(options.getString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN), "token is null");
 
+        // Read before taking the lock, this is a call into the service process
+        String descriptor;
+        try {
+            descriptor = binder.getInterfaceDescriptor();
+        } catch (RemoteException e) {
+            throw new IllegalArgumentException("binder of " + token + " is dead");
+        }
+
+        synchronized (this) {
+            sendUserServiceLocked(binder, descriptor, token, options.getLongArray(ShizukuApiConstants.USER_SERVICE_ARG_START_TRACE));
+        }
+    }
+
+    /**
+     * Writes the running services hosted in their own processes, for a new server to take over
+     * with {@link #adoptUserServices(Parcel)}. In-process services and services still starting are
+     * left out, they go away with this process.
+     */
+    public void writeUserServices(Parcel out) {
         synchronized (this) {
-            sendUserServiceLocked(binder, token);
+            List<UserServiceRecord> records = new ArrayList<>();
+            for (UserServiceRecord record : userServiceRecords.getAll()) {
+                StartTask task = restartTasks.get(record);
+                if (record.isRunning() && record.threadGroup == null && task != null && task.inProcessApplicationInfo == null) {
+                    records.add(record);
+                }
+            }
+
+            out.writeInt(records.size());
+            for (UserServiceRecord record : records) {
+                StartTask task = restartTasks.get(record);
+                out.writeString(record.key);
+                out.writeString(record.token);
+                out.writeString(record.packageName);
+                out.writeInt(record.versionCode);
+                out.writeInt(record.daemon ? 1 : 0);
+                out.writeInt(record.isRestartOnDeath() ? 1 : 0);
+                out.writeInt(record.getMaxRestarts());
+                out.writeStrongBinder(record.service);
+                out.writeString(record.getServiceDescriptor());
+                out.writeBinderList(record.getConnectionBinders());
+
+                // Start arguments, so the service can still be restarted on death
+                out.writeString(task.className);
+                out.writeString(task.processNameSuffix);
+                out.writeInt(task.callingUid);
+                out.writeInt(task.use32Bits ? 1 : 0);
+                out.writeInt(task.debug ? 1 : 0);
+                out.writeInt(task.sharedProcess ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Takes over services written by {@link #writeUserServices(Parcel)} in the previous server.
+     * Records are running from the start, and connections are not called again since the service
+     * binder has not changed.
+     *
+     * @return Number of services taken over
+     */
+    public int adoptUserServices(Parcel in) {
+        int count = in.readInt();
+        int adopted = 0;
+        for (int i = 0; i < count; i++) {
+            String key = in.readString();
+            String token = in.readString();
+            String packageName = in.readString();
+            int versionCode = in.readInt();
+            boolean daemon = in.readInt() != 0;
+            boolean restartOnDeath = in.readInt() != 0;
+            int maxRestarts = in.readInt();
+            IBinder service = in.readStrongBinder();
+            String descriptor = in.readString();
+            List<IBinder> connections = in.createBinderArrayList();
+            String className = in.readString();
+            String processNameSuffix = in.readString();
+            int callingUid = in.readInt();
+            boolean use32Bits = in.readInt() != 0;
+            boolean debug = in.readInt() != 0;
+            boolean sharedProcess = in.readInt() != 0;
+
+            PackageInfo packageInfo = PackageManagerApis.getPackageInfoNoThrow(packageName, 0, UserHandleCompat.getUserId(callingUid));
+            if (service == null || packageInfo == null || packageInfo.applicationInfo == null) {
+                LOGGER.w("Skip service record %s (%s) from the previous server", key, token);
+                continue;
+            }
+
+            synchronized (this) {
+                if (getUserServiceRecordLocked(key) != null) {
+                    continue;
+                }
+
+                UserServiceRecord record = newUserServiceRecord(key, packageName, versionCode, daemon, token);
+                record.setRestartPolicy(restartOnDeath, maxRestarts);
+                if (connections != null) {
+                    for (IBinder connection : connections) {
+                        record.callbacks.register(IShizukuServiceConnection.Stub.asInterface(connection));
+                    }
+                }
+
+                onUserServiceRecordCreated(record, packageInfo);
+                userServiceRecords.add(record);
+                restartTasks.put(record, new StartTask(record, key, packageName, className, processNameSuffix, callingUid, use32Bits, debug, sharedProcess, null));
+
+                record.adoptBinder(service, descriptor);
+                if (!record.isRunning()) {
+                    continue;
+                }
+
+                LOGGER.i("Adopted service record %s (%s) from the previous server", key, token);
+                if (!daemon) {
+                    scheduleTrimLocked();
+                }
+                adopted++;
+            }
         }
+        return adopted;
+    }
+
+    private static class ServiceProcess {
+
+        private final java.lang.Process process;
+        private final List<UserServiceRecord> records = new ArrayList<>();
+        private long pss;
+        private long lastActiveTime;
+        private boolean evictable = true;
+
+        private ServiceProcess(java.lang.Process process) {
+            this.process = process;
+        }
+    }
+
+    private void scheduleTrimLocked() {
+        if (trimScheduled) {
+            return;
+        }
+
+        trimScheduled = true;
+        HandlerUtil.getMainHandler().postDelayed(() -> executor.execute(this::trimIdleServices), TRIM_INTERVAL);
+    }
+
+    private void trimIdleServices() {
+        List<UserServiceRecord> records;
+        long idleSince;
+        synchronized (this) {
+            trimScheduled = false;
+            records = userServiceRecords.getAll();
+            idleSince = SystemClock.elapsedRealtime() - IDLE_TIMEOUT;
+        }
+
+        // Group records by process, a shared process can only be stopped if all of its services are idle
+        Map<java.lang.Process, ServiceProcess> processes = new ArrayMap<>();
+        Map<java.lang.Process, Long> newCpuTimes = new ArrayMap<>();
+        boolean hasNonDaemon = false;
+        for (UserServiceRecord record : records) {
+            java.lang.Process process = record.process;
+            if (process == null || !record.isRunning()) {
+                continue;
+            }
+
+            ServiceProcess serviceProcess = processes.get(process);
+            if (serviceProcess == null) {
+                serviceProcess = new ServiceProcess(process);
+                processes.put(process, serviceProcess);
+            }
+            serviceProcess.records.add(record);
+            hasNonDaemon |= !record.daemon;
+        }
+
+        long total = 0;
+        List<ServiceProcess> candidates = new ArrayList<>();
+        for (ServiceProcess serviceProcess : processes.values()) {
+            int pid = OsUtils.getPid(serviceProcess.process);
+
+            // Calls to a service use CPU in its process, this is the only sign of them the server
+            // has. Background work such as GC and JIT also does, so only a clear amount counts.
+            // A process seen for the first time counts as active.
+            long cpuTime = pid > 0 ? OsUtils.getCpuTime(pid) : -1;
+            Long lastCpuTime = cpuTimes.get(serviceProcess.process);
+            newCpuTimes.put(serviceProcess.process, cpuTime);
+            if (lastCpuTime == null || cpuTime - lastCpuTime >= ACTIVE_CPU_TIME) {
+                for (UserServiceRecord record : serviceProcess.records) {
+                    record.markActive();
+                }
+            }
+
+            for (UserServiceRecord record : serviceProcess.records) {
+                serviceProcess.lastActiveTime = Math.max(serviceProcess.lastActiveTime, record.getLastActiveTime());
+                if (record.daemon || record.getLastActiveTime() > idleSince) {
+                    serviceProcess.evictable = false;
+                }
+            }
+
+            serviceProcess.pss = pid > 0 ? Math.max(OsUtils.getPss(pid), 0) : 0;
+            total += serviceProcess.pss;
+            if (serviceProcess.evictable) {
+                candidates.add(serviceProcess);
+            }
+        }
+        cpuTimes = newCpuTimes;
+
+        if (total > MEMORY_BUDGET_KB) {
+            LOGGER.i("User service processes use %d kB, over the budget of %d kB", total, MEMORY_BUDGET_KB);
+
+            Collections.sort(candidates, (a, b) -> Long.compare(a.lastActiveTime, b.lastActiveTime));
+            for (ServiceProcess serviceProcess : candidates) {
+                if (total <= MEMORY_BUDGET_KB) {
+                    break;
+                }
+
+                if (evictServiceProcess(serviceProcess, idleSince)) {
+                    total -= serviceProcess.pss;
+                }
+            }
+        }
+
+        if (hasNonDaemon) {
+            synchronized (this) {
+                scheduleTrimLocked();
+            }
+        }
+    }
+
+    private boolean evictServiceProcess(ServiceProcess serviceProcess, long idleSince) {
+        synchronized (this) {
+            // A client may have bound since the snapshot
+            for (UserServiceRecord record : serviceProcess.records) {
+                if (record.daemon || record.getLastActiveTime() > idleSince) {
+                    return false;
+                }
+            }
+
+            for (UserServiceRecord record : serviceProcess.records) {
+                LOGGER.i("Evict idle service record %s (%s), %d kB", record.key, record.token, serviceProcess.pss);
+                record.broadcastBinderDied();
+                removeUserServiceLocked(record);
+            }
+        }
+
+        // Give the destroy transaction a chance to run before forcing it
+        java.lang.Process process = serviceProcess.process;
+        HandlerUtil.getMainHandler().postDelayed(() -> {
+            if (isAlive(process)) {
+                process.destroy();
+            }
+        }, EVICT_KILL_DELAY);
+        return true;
+    }
+
+    /**
+     * @param includeTokens whether to write the tokens of the records, only for privileged
+     *                      callers since a token is enough to attach to a user service
+     */
+    public void dump(PrintWriter pw, boolean includeTokens) {
+        pw.println("User services:");
+        List<UserServiceRecord> records = userServiceRecords.getAll();
+        if (records.isEmpty()) {
+            pw.println("  (none)");
+        }
+        for (UserServiceRecord record : records) {
+            pw.println(String.format(Locale.ENGLISH, "  %s: token=%s state=%d daemon=%s version=%d",
+                    record.key, includeTokens ? record.token : "<hidden>", record.getState(),
+                    Boolean.toString(record.daemon), record.versionCode));
+
+            UserServiceStartTrace trace = record.startTrace;
+            if (trace != null) {
+                pw.println("    start: " + trace);
+            }
+        }
+        pw.println();
+        startStats.dump(pw);
     }
 
     public void onUserServiceRecordCreated(UserServiceRecord record, PackageInfo packageInfo) {
@@ -276,13 +983,11 @@ public abstract class UserServiceManager {
     }
 
     public void removeUserServicesForPackage(String packageName) {
-        List<UserServiceRecord> list = packageUserServiceRecords.get(packageName);
-        if (list != null) {
-            for (UserServiceRecord record : list) {
-                record.removeSelf();
+        synchronized (this) {
+            for (UserServiceRecord record : userServiceRecords.getForPackage(packageName)) {
+                removeUserServiceLocked(record);
                 LOGGER.i("Remove user service %s for package %s", record.token, packageName);
             }
-            packageUserServiceRecords.remove(packageName);
         }
     }
 
@@ -6,8 +6,13 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
+import android.os.SystemClock;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import moe.shizuku.server.IShizukuServiceConnection;
 import rikka.shizuku.server.util.HandlerUtil;
@@ -32,63 +37,269 @@ public abstract class UserServiceRecord {
 
     protected static final Logger LOGGER = new Logger("UserServiceRecord");
 
+    public static final long CRASH_LOOP_WINDOW = 5 * 60 * 1000;
+    private static final long MIN_RESTART_DELAY = 1000;
+    private static final long MAX_RESTART_DELAY = 60 * 1000;
+
+    /**
+     * Process is being started, the binder is not received yet.
+     */
+    public static final int STATE_STARTING = 0;
+
+    /**
+     * Binder is received and linked to death.
+     */
+    public static final int STATE_RUNNING = 1;
+
+    /**
+     * Binder died, the record is waiting to be removed or restarted.
+     */
+    public static final int STATE_DYING = 2;
+
+    /**
+     * Record is removed.
+     */
+    public static final int STATE_DEAD = 3;
+
     private final IBinder.DeathRecipient deathRecipient;
+    public final String key;
+    public final String packageName;
     public final int versionCode;
-    public String token;
-    public IBinder service;
+    public final String token;
+    public volatile IBinder service;
+    private String serviceDescriptor;
     public final RemoteCallbackList<IShizukuServiceConnection> callbacks = new ConnectionList();
     public boolean daemon;
-    public boolean starting;
+    private final AtomicInteger state = new AtomicInteger(STATE_STARTING);
+    volatile java.lang.Process process;
+    volatile UserServiceStartTrace startTrace;
+    volatile ThreadGroup threadGroup;
+    private volatile long lastActiveTime = SystemClock.elapsedRealtime();
+    private boolean restartOnDeath;
+    private int maxRestarts;
+    private final ArrayDeque<Long> deathTimes = new ArrayDeque<>();
 
-    public UserServiceRecord(int versionCode, boolean daemon) {
+    public UserServiceRecord(String key, String packageName, int versionCode, boolean daemon) {
+        this(key, packageName, versionCode, daemon, newToken());
+    }
+
+    /**
+     * Creates a record with an existing token, for a service handed over from a previous server.
+     */
+    public UserServiceRecord(String key, String packageName, int versionCode, boolean daemon, String token) {
+        this.key = key;
+        this.packageName = packageName;
         this.versionCode = versionCode;
-        this.token = UUID.randomUUID().toString() + "-" + System.currentTimeMillis();
+        this.token = token;
         this.deathRecipient = () -> {
+            if (!state.compareAndSet(STATE_RUNNING, STATE_DYING)) {
+                return;
+            }
+
             LOGGER.v("Binder for service record %s is dead", token);
-            removeSelf();
+
+            long delay = getRestartDelay();
+            if (delay >= 0) {
+                restartSelf(delay);
+            } else {
+                removeSelf();
+            }
         };
         this.daemon = daemon;
     }
 
-    public void setStartingTimeout(long timeoutMillis) {
-        if (starting) {
-            LOGGER.w("Service record %s is already starting", token);
-            return;
+    public static String newToken() {
+        return UUID.randomUUID().toString() + "-" + System.currentTimeMillis();
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Liveness as last reported by the death recipient, this never makes a binder call.
+     */
+    public boolean isRunning() {
+        return state.get() == STATE_RUNNING;
+    }
+
+    public boolean isStarting() {
+        return state.get() == STATE_STARTING;
+    }
+
+    /**
+     * Returns false if a starting timeout is already set, which means the start has already been
+     * scheduled.
+     */
+    public boolean setStartingTimeout(long timeoutMillis) {
+        if (startTimeoutCallback != null) {
+            return false;
         }
 
         LOGGER.v("Set starting timeout for service record %s: %d", token, timeoutMillis);
 
-        starting = true;
         startTimeoutCallback = () -> {
-            if (starting) {
+            if (state.get() == STATE_STARTING) {
                 LOGGER.w("Service record %s is not started in %d ms", token, timeoutMillis);
                 removeSelf();
             }
         };
         HandlerUtil.getMainHandler().postDelayed(startTimeoutCallback, timeoutMillis);
+        return true;
+    }
+
+    /**
+     * Called when a client binds, and when the process of the service has used CPU since the
+     * last trim, which is how calls to the service are noticed since the server does not see
+     * transactions to it.
+     */
+    public void markActive() {
+        lastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    public long getLastActiveTime() {
+        return lastActiveTime;
     }
 
     public void setDaemon(boolean daemon) {
         this.daemon = daemon;
     }
 
-    public void setBinder(IBinder binder) {
+    /**
+     * Restart a daemon service when it dies, unless it died more than {@code maxRestarts} times
+     * within {@link #CRASH_LOOP_WINDOW}.
+     */
+    public synchronized void setRestartPolicy(boolean restartOnDeath, int maxRestarts) {
+        this.restartOnDeath = restartOnDeath;
+        this.maxRestarts = maxRestarts;
+    }
+
+    public synchronized boolean isRestartOnDeath() {
+        return restartOnDeath;
+    }
+
+    public synchronized int getMaxRestarts() {
+        return maxRestarts;
+    }
+
+    public String getServiceDescriptor() {
+        return serviceDescriptor;
+    }
+
+    /**
+     * Returns the delay before the restart, or -1 if the service should not be restarted.
+     */
+    private synchronized long getRestartDelay() {
+        if (!daemon || !restartOnDeath) {
+            return -1;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        while (!deathTimes.isEmpty() && deathTimes.peekFirst() < now - CRASH_LOOP_WINDOW) {
+            deathTimes.pollFirst();
+        }
+        deathTimes.addLast(now);
+
+        int deaths = deathTimes.size();
+        if (deaths > maxRestarts) {
+            LOGGER.w("Service record %s died %d times in %d ms, not restarting", token, deaths, CRASH_LOOP_WINDOW);
+            return -1;
+        }
+
+        // 1s, 2s, 4s... capped at MAX_RESTART_DELAY
+        return Math.min(MIN_RESTART_DELAY << Math.min(deaths - 1, 16), MAX_RESTART_DELAY);
+    }
+
+    /**
+     * Moves a dead record back to starting, keeping its token and callbacks. Returns false if the
+     * record is not dying, for example it has been removed meanwhile.
+     */
+    public boolean prepareRestart() {
+        if (!state.compareAndSet(STATE_DYING, STATE_STARTING)) {
+            return false;
+        }
+
+        if (startTimeoutCallback != null) {
+            HandlerUtil.getMainHandler().removeCallbacks(startTimeoutCallback);
+            startTimeoutCallback = null;
+        }
+
+        if (service != null) {
+            service.unlinkToDeath(deathRecipient, 0);
+        }
+        service = null;
+        serviceDescriptor = null;
+        process = null;
+        return true;
+    }
+
+    /**
+     * Called with the interface descriptor already read by the caller, so this does not need to
+     * make a binder call.
+     */
+    public void setBinder(IBinder binder, String descriptor) {
         LOGGER.v("Binder received for service record %s", token);
 
-        HandlerUtil.getMainHandler().removeCallbacks(startTimeoutCallback);
+        if (!linkBinder(binder, descriptor)) {
+            return;
+        }
+
+        broadcastBinderReceived();
+    }
+
+    /**
+     * Takes over a binder that connections already have, for a service handed over from a
+     * previous server. Unlike {@link #setBinder(IBinder, String)}, connections are not called.
+     */
+    public void adoptBinder(IBinder binder, String descriptor) {
+        LOGGER.v("Binder adopted for service record %s", token);
+
+        linkBinder(binder, descriptor);
+    }
+
+    private boolean linkBinder(IBinder binder, String descriptor) {
+        if (state.get() == STATE_RUNNING && service == binder) {
+            // Service process attaching again after a server handoff
+            return false;
+        }
+
+        if (!state.compareAndSet(STATE_STARTING, STATE_RUNNING)) {
+            LOGGER.w("Binder received for service record %s in state %d", token, state.get());
+            return false;
+        }
+
+        if (startTimeoutCallback != null) {
+            HandlerUtil.getMainHandler().removeCallbacks(startTimeoutCallback);
+        }
 
         service = binder;
+        serviceDescriptor = descriptor;
 
         try {
             binder.linkToDeath(deathRecipient, 0);
         } catch (Throwable tr) {
             LOGGER.w("linkToDeath %s", token);
+            state.set(STATE_DYING);
+            removeSelf();
+            return false;
         }
+        return true;
+    }
 
-        broadcastBinderReceived();
+    /**
+     * Returns the binders of the registered connections.
+     */
+    public synchronized List<IBinder> getConnectionBinders() {
+        List<IBinder> binders = new ArrayList<>();
+        int count = callbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            binders.add(callbacks.getBroadcastItem(i).asBinder());
+        }
+        callbacks.finishBroadcast();
+        return binders;
     }
 
-    public void broadcastBinderReceived() {
+    public synchronized void broadcastBinderReceived() {
         LOGGER.v("Broadcast binder received for service record %s", token);
 
         int count = callbacks.beginBroadcast();
@@ -102,7 +313,7 @@ public abstract class UserServiceRecord {
         callbacks.finishBroadcast();
     }
 
-    public void broadcastBinderDied() {
+    public synchronized void broadcastBinderDied() {
         LOGGER.v("Broadcast binder died for service record %s", token);
 
         int count = callbacks.beginBroadcast();
@@ -118,25 +329,50 @@ public abstract class UserServiceRecord {
 
     public abstract void removeSelf();
 
+    public abstract void restartSelf(long delayMillis);
+
     public void destroy() {
+        int oldState = state.getAndSet(STATE_DEAD);
+
+        if (startTimeoutCallback != null) {
+            HandlerUtil.getMainHandler().removeCallbacks(startTimeoutCallback);
+        }
+
         if (service != null) {
             service.unlinkToDeath(deathRecipient, 0);
         }
 
-        if (service != null && service.pingBinder()) {
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            try {
-                data.writeInterfaceToken(service.getInterfaceDescriptor());
-                service.transact(USER_SERVICE_TRANSACTION_destroy, data, reply, Binder.FLAG_ONEWAY);
-            } catch (Throwable e) {
-                LOGGER.w("Failed to call destroy %s", token);
-            } finally {
-                data.recycle();
-                reply.recycle();
+        ThreadGroup group = threadGroup;
+        if (group != null) {
+            // A service loaded into this process has a local binder that never dies, clients
+            // only learn that it is gone from here
+            broadcastBinderDied();
+
+            IBinder service = this.service;
+            if (service instanceof InProcessUserServiceBinder) {
+                ((InProcessUserServiceBinder) service).destroy();
+            } else {
+                group.interrupt();
             }
+        } else if (oldState == STATE_RUNNING) {
+            // Oneway, so this never waits for the service process
+            transactDestroy(service);
         }
 
         callbacks.kill();
     }
+
+    private void transactDestroy(IBinder service) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(serviceDescriptor);
+            service.transact(USER_SERVICE_TRANSACTION_destroy, data, reply, Binder.FLAG_ONEWAY);
+        } catch (Throwable e) {
+            LOGGER.w("Failed to call destroy %s", token);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package rikka.shizuku.server;
+
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * User service records indexed by key, token and package.
+ * <p>
+ * Changes must be serialized by the caller, {@link UserServiceManager} makes them with its lock
+ * held. Lookups by key and token do not need any lock.
+ */
+class UserServiceRegistry {
+
+    private final Map<String, UserServiceRecord> byKey = new ConcurrentHashMap<>();
+    private final Map<String, UserServiceRecord> byToken = new ConcurrentHashMap<>();
+    private final Map<String, List<UserServiceRecord>> byPackage = new ArrayMap<>();
+
+    UserServiceRecord get(String key) {
+        return byKey.get(key);
+    }
+
+    UserServiceRecord getByToken(String token) {
+        return byToken.get(token);
+    }
+
+    void add(UserServiceRecord record) {
+        UserServiceRecord old = byKey.put(record.key, record);
+        if (old != null) {
+            throw new IllegalStateException("service record " + record.key + " already exists");
+        }
+        byToken.put(record.token, record);
+
+        List<UserServiceRecord> list = byPackage.get(record.packageName);
+        if (list == null) {
+            list = new ArrayList<>();
+            byPackage.put(record.packageName, list);
+        }
+        list.add(record);
+    }
+
+    boolean remove(UserServiceRecord record) {
+        if (!byKey.remove(record.key, record)) {
+            return false;
+        }
+        byToken.remove(record.token, record);
+
+        List<UserServiceRecord> list = byPackage.get(record.packageName);
+        if (list != null) {
+            list.remove(record);
+            if (list.isEmpty()) {
+                byPackage.remove(record.packageName);
+            }
+        }
+        return true;
+    }
+
+    List<UserServiceRecord> getAll() {
+        return new ArrayList<>(byKey.values());
+    }
+
+    List<UserServiceRecord> getForPackage(String packageName) {
+        List<UserServiceRecord> list = byPackage.get(packageName);
+        return list != null ? new ArrayList<>(list) : Collections.emptyList();
+    }
+}
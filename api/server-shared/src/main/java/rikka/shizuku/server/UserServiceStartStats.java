@@ -0,0 +1,70 @@
+package rikka.shizuku.server;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rolling start latency of user services for each package.
+ */
+public class UserServiceStartStats {
+
+    private static final int WINDOW = 64;
+
+    private static class Window {
+
+        private final long[] totals = new long[WINDOW];
+        private int count;
+        private int next;
+        private UserServiceStartTrace last;
+
+        private void add(UserServiceStartTrace trace) {
+            totals[next] = trace.getTotal();
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+            last = trace;
+        }
+
+        private long percentile(long[] sorted, int percent) {
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(index, 0)];
+        }
+    }
+
+    private final Map<String, Window> windows = new ArrayMap<>();
+
+    public synchronized void add(String packageName, UserServiceStartTrace trace) {
+        if (!trace.isComplete()) {
+            return;
+        }
+
+        Window window = windows.get(packageName);
+        if (window == null) {
+            window = new Window();
+            windows.put(packageName, window);
+        }
+        window.add(trace);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Start latency (last " + WINDOW + " starts per package):");
+        if (windows.isEmpty()) {
+            pw.println("  (none)");
+            return;
+        }
+
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            long[] sorted = Arrays.copyOf(window.totals, window.count);
+            Arrays.sort(sorted);
+
+            pw.println(String.format(Locale.ENGLISH, "  %s: count=%d p50=%dms p90=%dms p99=%dms",
+                    entry.getKey(), window.count,
+                    window.percentile(sorted, 50), window.percentile(sorted, 90), window.percentile(sorted, 99)));
+            pw.println("    last: " + window.last);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Timestamps of the phases of a user service start, in {@link SystemClock#elapsedRealtime()}
+ * which is the same in the server and in the service process.
+ * <p>
+ * Phases from {@link #PHASE_MAIN} to {@link #PHASE_INSTANTIATED} are recorded by the service
+ * process and sent back with the binder.
+ */
+public class UserServiceStartTrace {
+
+    public static final int PHASE_REQUESTED = 0;
+    public static final int PHASE_DEQUEUED = 1;
+    public static final int PHASE_SPAWNED = 2;
+    public static final int PHASE_MAIN = 3;
+    public static final int PHASE_SYSTEM_CONTEXT = 4;
+    public static final int PHASE_PACKAGE_CONTEXT = 5;
+    public static final int PHASE_CLASS_LOADED = 6;
+    public static final int PHASE_INSTANTIATED = 7;
+    public static final int PHASE_ATTACHED = 8;
+    public static final int PHASE_COUNT = 9;
+
+    private static final String[] PHASE_NAMES = {
+            "requested",
+            "dequeued",
+            "spawned",
+            "main",
+            "system_context",
+            "package_context",
+            "class_loaded",
+            "instantiated",
+            "attached"
+    };
+
+    public static void mark(long[] times, int phase) {
+        times[phase] = SystemClock.elapsedRealtime();
+    }
+
+    private final long[] times = new long[PHASE_COUNT];
+
+    public synchronized void mark(int phase) {
+        mark(times, phase);
+    }
+
+    /**
+     * Adds phases recorded by the service process.
+     */
+    public synchronized void merge(long[] remoteTimes) {
+        if (remoteTimes == null) {
+            return;
+        }
+
+        for (int i = PHASE_MAIN; i <= PHASE_INSTANTIATED && i < remoteTimes.length; i++) {
+            if (remoteTimes[i] > 0) {
+                times[i] = remoteTimes[i];
+            }
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return times[PHASE_REQUESTED] > 0 && times[PHASE_ATTACHED] > 0;
+    }
+
+    public synchronized long getTotal() {
+        return isComplete() ? times[PHASE_ATTACHED] - times[PHASE_REQUESTED] : -1;
+    }
+
+    /**
+     * Returns time spent in each phase, which is the time since the previous recorded phase. A
+     * standby process runs {@link #PHASE_MAIN} and {@link #PHASE_SYSTEM_CONTEXT} before it is
+     * spawned for this service, those are reported as 0.
+     */
+    public synchronized long[] getDurations() {
+        long[] durations = new long[PHASE_COUNT];
+        long previous = times[PHASE_REQUESTED];
+        for (int i = PHASE_DEQUEUED; i < PHASE_COUNT; i++) {
+            if (times[i] <= 0) {
+                durations[i] = -1;
+                continue;
+            }
+            durations[i] = Math.max(times[i] - previous, 0);
+            previous = Math.max(times[i], previous);
+        }
+        return durations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total=").append(getTotal()).append("ms");
+
+        long[] durations = getDurations();
+        for (int i = PHASE_DEQUEUED; i < PHASE_COUNT; i++) {
+            if (durations[i] >= 0) {
+                sb.append(String.format(Locale.ENGLISH, " %s=+%dms", PHASE_NAMES[i], durations[i]));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,6 +1,14 @@
 package rikka.shizuku.server.util;
 
 import android.os.SELinux;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
 
 public class OsUtils {
 
@@ -30,5 +38,86 @@ public class OsUtils {
     public static String getSELinuxContext() {
         return SELINUX_CONTEXT;
     }
-}
 
+    /**
+     * Returns the pid of a process started from {@link ProcessBuilder}, or -1 if unknown.
+     */
+    public static int getPid(java.lang.Process process) {
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Throwable tr) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the PSS of a process in kB, or RSS if PSS is not available, or -1 if the process is
+     * gone.
+     */
+    public static long getPss(int pid) {
+        long pss = readProcValue("/proc/" + pid + "/smaps_rollup", "Pss:");
+        if (pss < 0) {
+            pss = readProcValue("/proc/" + pid + "/status", "VmRSS:");
+        }
+        return pss;
+    }
+
+    /**
+     * Returns the CPU time in ms used by the threads of a process, or -1 if the process is gone.
+     * The value is the sum of the run time from schedstat of each thread, or utime + stime if
+     * schedstat is not available, so it is only meant to be compared with an earlier value of the
+     * same process.
+     */
+    public static long getCpuTime(int pid) {
+        File[] tasks = new File("/proc/" + pid + "/task").listFiles();
+        if (tasks != null) {
+            long total = 0;
+            boolean found = false;
+            for (File task : tasks) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(new File(task, "schedstat")))) {
+                    String line = reader.readLine();
+                    int space = line != null ? line.indexOf(' ') : -1;
+                    if (space != -1) {
+                        total += Long.parseLong(line.substring(0, space));
+                        found = true;
+                    }
+                } catch (IOException | NumberFormatException ignored) {
+                    // Thread exited meanwhile
+                }
+            }
+            if (found) {
+                return total / 1000000;
+            }
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"))) {
+            String line = reader.readLine();
+            // Process name may contain spaces, fields after it start with the state
+            int end = line != null ? line.lastIndexOf(')') : -1;
+            if (end != -1) {
+                String[] fields = line.substring(end + 2).split(" ");
+                long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+                return ticks * 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return -1;
+    }
+
+    private static long readProcValue(String path, String name) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(name)) {
+                    String value = line.substring(name.length()).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space != -1 ? value.substring(0, space) : value);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
@@ -26,10 +26,18 @@ public class ShizukuApiConstants {
     public static final String USER_SERVICE_ARG_DAEMON = "shizuku:user-service-arg-daemon";
     public static final String USER_SERVICE_ARG_USE_32_BIT_APP_PROCESS = "shizuku:user-service-arg-use-32-bit-app-process";
     public static final String USER_SERVICE_ARG_REMOVE = "shizuku:user-service-remove";
+    public static final String USER_SERVICE_ARG_SHARED_PROCESS = "shizuku:user-service-arg-shared-process";
+    public static final String USER_SERVICE_ARG_RESTART_ON_DEATH = "shizuku:user-service-arg-restart-on-death";
+    public static final String USER_SERVICE_ARG_MAX_RESTARTS = "shizuku:user-service-arg-max-restarts";
+    public static final String USER_SERVICE_ARG_IN_PROCESS = "shizuku:user-service-arg-in-process";
+    public static final String USER_SERVICE_ARG_STANDBY = "shizuku:user-service-arg-standby";
 
     @RestrictTo(LIBRARY_GROUP_PREFIX)
     public static final String USER_SERVICE_ARG_TOKEN = "shizuku:user-service-arg-token";
 
+    @RestrictTo(LIBRARY_GROUP_PREFIX)
+    public static final String USER_SERVICE_ARG_START_TRACE = "shizuku:user-service-arg-start-trace";
+
     // bind application
     public static final String BIND_APPLICATION_SERVER_VERSION = "shizuku:attach-reply-version";
     public static final String BIND_APPLICATION_SERVER_PATCH_VERSION = "shizuku:attach-reply-patch-version";
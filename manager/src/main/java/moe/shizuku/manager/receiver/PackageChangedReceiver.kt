@@ -0,0 +1,58 @@
+package moe.shizuku.manager.receiver
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import moe.shizuku.manager.utils.Logger.LOGGER
+import moe.shizuku.server.IShizukuService
+import rikka.shizuku.Shizuku
+import rikka.shizuku.server.ktx.workerHandler
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Forwards package broadcasts to the server, which keeps its index of client packages with them.
+ * From API 26 these broadcasts only reach a running manager, the server then finds new packages
+ * from the changed packages of the package manager.
+ */
+class PackageChangedReceiver : BroadcastReceiver() {
+
+    companion object {
+        private const val BINDER_TIMEOUT = 5000L
+    }
+
+    override fun onReceive(context: Context, intent: Intent) {
+        when (intent.action) {
+            Intent.ACTION_PACKAGE_ADDED,
+            Intent.ACTION_PACKAGE_REPLACED,
+            Intent.ACTION_PACKAGE_FULLY_REMOVED -> Unit
+            else -> return
+        }
+
+        // The manager process may have been started for this broadcast, wait for the binder
+        val pendingResult = goAsync()
+        val finished = AtomicBoolean()
+
+        val listener = object : Shizuku.OnBinderReceivedListener {
+
+            override fun onBinderReceived() {
+                Shizuku.removeBinderReceivedListener(this)
+                if (!finished.compareAndSet(false, true)) return
+
+                try {
+                    IShizukuService.Stub.asInterface(Shizuku.getBinder()).dispatchPackageChanged(intent)
+                } catch (e: Throwable) {
+                    LOGGER.w(e, "dispatchPackageChanged")
+                }
+                pendingResult.finish()
+            }
+        }
+
+        Shizuku.addBinderReceivedListenerSticky(listener, workerHandler)
+        workerHandler.postDelayed({
+            Shizuku.removeBinderReceivedListener(listener)
+            if (finished.compareAndSet(false, true)) {
+                pendingResult.finish()
+            }
+        }, BINDER_TIMEOUT)
+    }
+}
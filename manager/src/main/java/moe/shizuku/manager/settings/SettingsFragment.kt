@@ -2,6 +2,7 @@ package moe.shizuku.manager.settings
 
 import android.content.ComponentName
 import android.content.Context
+import android.content.Intent
 import android.os.Build
 import android.os.Bundle
 import android.text.TextUtils
@@ -9,9 +10,14 @@ import android.util.TypedValue
 import android.view.LayoutInflater
 import android.view.ViewGroup
 import android.widget.FrameLayout
+import android.widget.Toast
 import androidx.appcompat.app.AppCompatDelegate
+import androidx.lifecycle.lifecycleScope
 import androidx.preference.*
 import androidx.recyclerview.widget.RecyclerView
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import moe.shizuku.manager.R
 import moe.shizuku.manager.ShizukuSettings
 import moe.shizuku.manager.ShizukuSettings.KEEP_START_ON_BOOT
@@ -19,6 +25,7 @@ import moe.shizuku.manager.app.ThemeHelper
 import moe.shizuku.manager.app.ThemeHelper.KEY_BLACK_NIGHT_THEME
 import moe.shizuku.manager.app.ThemeHelper.KEY_USE_SYSTEM_COLOR
 import moe.shizuku.manager.ktx.isComponentEnabled
+import moe.shizuku.manager.ktx.logw
 import moe.shizuku.manager.ktx.setComponentEnabled
 import moe.shizuku.manager.ktx.toHtml
 import moe.shizuku.manager.receiver.BootCompleteReceiver
@@ -27,8 +34,11 @@ import rikka.core.util.ResourceUtils
 import rikka.material.app.LocaleDelegate
 import rikka.recyclerview.addEdgeSpacing
 import rikka.recyclerview.fixEdgeEffect
+import rikka.shizuku.Shizuku
 import rikka.shizuku.manager.ShizukuLocales
 import rikka.widget.borderview.BorderRecyclerView
+import java.io.File
+import java.io.FileOutputStream
 import java.util.*
 import moe.shizuku.manager.ShizukuSettings.LANGUAGE as KEY_LANGUAGE
 import moe.shizuku.manager.ShizukuSettings.NIGHT_MODE as KEY_NIGHT_MODE
@@ -43,6 +53,7 @@ class SettingsFragment : PreferenceFragmentCompat() {
     private lateinit var translationPreference: Preference
     private lateinit var translationContributorsPreference: Preference
     private lateinit var useSystemColorPreference: TwoStatePreference
+    private lateinit var serverDumpPreference: Preference
 
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         val context = requireContext()
@@ -60,6 +71,7 @@ class SettingsFragment : PreferenceFragmentCompat() {
         translationPreference = findPreference("translation")!!
         translationContributorsPreference = findPreference("translation_contributors")!!
         useSystemColorPreference = findPreference(KEY_USE_SYSTEM_COLOR)!!
+        serverDumpPreference = findPreference("server_dump")!!
 
         val componentName = ComponentName(context.packageName, BootCompleteReceiver::class.java.name)
 
@@ -138,6 +150,53 @@ class SettingsFragment : PreferenceFragmentCompat() {
         } else {
             translationContributorsPreference.isVisible = false
         }
+
+        serverDumpPreference.setOnPreferenceClickListener {
+            shareServerDump()
+            true
+        }
+    }
+
+    private fun shareServerDump() {
+        val context = requireContext()
+        lifecycleScope.launch {
+            val text = withContext(Dispatchers.IO) {
+                try {
+                    readServerDump(context)
+                } catch (e: Throwable) {
+                    logw("dump server", e)
+                    null
+                }
+            }
+            if (text == null) {
+                Toast.makeText(
+                    context,
+                    context.getString(R.string.home_status_service_not_running, context.getString(R.string.app_name)),
+                    Toast.LENGTH_SHORT
+                ).show()
+                return@launch
+            }
+
+            var intent = Intent(Intent.ACTION_SEND)
+            intent.type = "text/plain"
+            intent.putExtra(Intent.EXTRA_TEXT, text)
+            intent = Intent.createChooser(intent, context.getString(R.string.settings_server_dump))
+            startActivity(intent)
+        }
+    }
+
+    // The server writes to the file directly, a pipe would fill up before the dump call returns
+    private fun readServerDump(context: Context): String? {
+        val binder = Shizuku.getBinder()
+        if (binder == null || !binder.pingBinder()) {
+            return null
+        }
+
+        val file = File(context.cacheDir, "server_dump.txt")
+        FileOutputStream(file).use {
+            binder.dump(it.fd, emptyArray())
+        }
+        return file.readText()
     }
 
     override fun onCreateRecyclerView(
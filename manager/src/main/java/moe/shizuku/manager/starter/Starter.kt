@@ -21,6 +21,9 @@ import java.util.zip.ZipFile
 
 object Starter {
 
+    // assets에 포함된 서버 전용 dex의 이름 (:server-dex 모듈이 생성함)
+    private const val SERVER_DEX_NAME = "shizuku_server.jar"
+
     // 내부에서 사용할 명령어들을 저장하는 배열. 인덱스 0: 내부 데이터 파일용, 인덱스 1: 외부 파일(SD카드)용.
     private var commandInternal = arrayOfNulls<String>(2)
 
@@ -55,7 +58,8 @@ object Starter {
         val dir = filesDir.parentFile ?: throw IOException("$filesDir parentFile returns null")
         // starter 파일을 복사하고 스크립트를 작성하여 명령어를 생성
         val starter = copyStarter(context, File(dir, "starter"))
-        val sh = writeScript(context, File(dir, "start.sh"), starter)
+        val serverDex = copyServerDex(context, File(dir, SERVER_DEX_NAME))
+        val sh = writeScript(context, File(dir, "start.sh"), starter, serverDex)
         // 생성한 명령어를 commandInternal에 저장
         commandInternal[1] = "sh $sh"
         logd(commandInternal[1]!!)
@@ -84,9 +88,10 @@ object Starter {
         // starter 파일을 복사하고 스크립트를 작성하여 명령어를 생성
         try {
             val starter = copyStarter(context, File(dir, "starter"))
-            val sh = writeScript(context, File(dir, "start.sh"), starter)
+            val serverDex = copyServerDex(context, File(dir, SERVER_DEX_NAME))
+            val sh = writeScript(context, File(dir, "start.sh"), starter, serverDex)
             // 명령어를 생성하여 commandInternal에 저장
-            commandInternal[0] = "sh $sh --apk=${context.applicationInfo.sourceDir}"
+            commandInternal[0] = "sh $sh --apk=${context.applicationInfo.sourceDir} --handoff"
             logd(commandInternal[0]!!)
 
             // 권한 설정이 필요한 경우 starter 및 스크립트의 권한을 0644로 변경
@@ -101,6 +106,13 @@ object Starter {
                 } catch (e: ErrnoException) {
                     e.printStackTrace()
                 }
+                if (serverDex != null) {
+                    try {
+                        Os.chmod(serverDex, 420 /* 0644 */)
+                    } catch (e: ErrnoException) {
+                        e.printStackTrace()
+                    }
+                }
             }
         } catch (e: IOException) {
             loge("write files", e)
@@ -135,8 +147,24 @@ object Starter {
         return out.absolutePath
     }
 
+    // 서버 클래스만 담은 dex를 assets에서 복사하는 함수
+    // starter가 이를 /data/local/tmp/shizuku로 복사하고 미리 컴파일하여 서버 실행에 사용함
+    // assets에 없으면 null을 반환하며, 이 경우 서버는 APK에서 실행됨
+    // 루트로 시작한 경우에는 셸 사용자가 바꿀 수 있는 파일을 쓰지 않도록 starter가 이를 무시하고 APK에서 실행함
+    private fun copyServerDex(context: Context, out: File): String? {
+        return try {
+            context.assets.open(SERVER_DEX_NAME).use { input ->
+                FileOutputStream(out).use { output -> input.copyTo(output) }
+            }
+            out.absolutePath
+        } catch (e: IOException) {
+            loge("copy server dex", e)
+            null
+        }
+    }
+
     // 스크립트를 생성하는 함수
-    private fun writeScript(context: Context, out: File, starter: String): String {
+    private fun writeScript(context: Context, out: File, starter: String, serverDex: String?): String {
         // 파일이 존재하지 않으면 새로 생성
         if (!out.exists()) {
             out.createNewFile()
@@ -148,7 +176,8 @@ object Starter {
         var line: String?
         // 스크립트 파일을 한 줄씩 읽어서 %%STARTER_PATH%%%를 starter 경로로 대체
         while (`is`.readLine().also { line = it } != null) {
-            os.println(line!!.replace("%%%STARTER_PATH%%%", starter))
+            os.println(line!!.replace("%%%STARTER_PATH%%%", starter)
+                .replace("%%%SERVER_DEX_PATH%%%", serverDex ?: ""))
         }
         os.flush()
         os.close()
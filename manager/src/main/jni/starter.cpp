@@ -6,6 +6,9 @@
 #include <cstring>
 #include <libgen.h>
 #include <sys/stat.h>
+#include <sys/resource.h>
+#include <sys/wait.h>
+#include <fcntl.h>
 #include <sys/system_properties.h>
 #include <cerrno>
 #include <string_view>
@@ -36,15 +39,30 @@
 
 #if defined(__arm__)
 #define ABI "armeabi-v7a"
+#define ISA "arm"
 #elif defined(__i386__)
 #define ABI "x86"
+#define ISA "x86"
 #elif defined(__x86_64__)
 #define ABI "x86_64"
+#define ISA "x86_64"
 #elif defined(__aarch64__)
 #define ABI "arm64-v8a"
+#define ISA "arm64"
 #endif
 
-static void run_server(const char *dex_path, const char *main_class, const char *process_name) {
+// Dex of the server only, copied from the manager and compiled ahead of time, so the server
+// does not open the whole manager apk and does not run interpreted at every start.
+// ART finds the odex at oat/<isa>/<name>.odex next to the dex.
+// Only used when started with adb. Everything under /data/local/tmp can be replaced by the shell
+// user, so a server running as root always runs from the apk.
+#define SERVER_DEX_PATH "/data/local/tmp/shizuku/server.jar"
+#define SERVER_OAT_DIR "/data/local/tmp/shizuku/oat/" ISA
+#define SERVER_ODEX_PATH SERVER_OAT_DIR "/server.odex"
+#define SERVER_VDEX_PATH SERVER_OAT_DIR "/server.vdex"
+#define SERVER_OAT_STAMP_PATH SERVER_OAT_DIR "/server.stamp"
+
+static void run_server(const char *dex_path, const char *apk_path, const char *main_class, const char *process_name, bool handoff) {
     if (setenv("CLASSPATH", dex_path, true)) {
         LOGE("can't set CLASSPATH\n");
         exit(EXIT_FATAL_SET_CLASSPATH);
@@ -92,7 +110,7 @@ v_current = (uintptr_t) v + v_size - sizeof(char *); \
 #endif
 
     char lib_path[PATH_MAX]{0};
-    snprintf(lib_path, PATH_MAX, "%s!/lib/%s", dex_path, ABI);
+    snprintf(lib_path, PATH_MAX, "%s!/lib/%s", apk_path, ABI);
 
     ARG(argv)
     ARG_PUSH(argv, "/system/bin/app_process")
@@ -102,6 +120,9 @@ v_current = (uintptr_t) v + v_size - sizeof(char *); \
     ARG_PUSH(argv, "/system/bin")
     ARG_PUSH_FMT(argv, "--nice-name=%s", process_name)
     ARG_PUSH(argv, main_class)
+    if (handoff) {
+        ARG_PUSH(argv, "--handoff")
+    }
     ARG_PUSH_DEBUG_ONLY(argv, "--debug")
     ARG_END(argv)
 
@@ -112,16 +133,210 @@ v_current = (uintptr_t) v + v_size - sizeof(char *); \
     }
 }
 
-static void start_server(const char *path, const char *main_class, const char *process_name) {
+static void start_server(const char *dex_path, const char *apk_path, const char *main_class, const char *process_name, bool handoff) {
     if (daemon(false, false) == 0) {
         LOGD("child");
-        run_server(path, main_class, process_name);
+        run_server(dex_path, apk_path, main_class, process_name, handoff);
     } else {
         perrorf("fatal: can't fork\n");
         exit(EXIT_FATAL_FORK);
     }
 }
 
+static bool is_same_file_content(const char *a, const char *b) {
+    struct stat st_a{}, st_b{};
+    if (stat(a, &st_a) != 0 || stat(b, &st_b) != 0 || st_a.st_size != st_b.st_size) {
+        return false;
+    }
+
+    FILE *fa = fopen(a, "rb");
+    FILE *fb = fopen(b, "rb");
+    bool same = fa && fb;
+    char buf_a[8192], buf_b[8192];
+    while (same) {
+        size_t n = fread(buf_a, 1, sizeof(buf_a), fa);
+        if (n == 0 || fread(buf_b, 1, n, fb) != n || memcmp(buf_a, buf_b, n) != 0) {
+            same = n == 0 && feof(fa);
+            break;
+        }
+    }
+    if (fa) fclose(fa);
+    if (fb) fclose(fb);
+    return same;
+}
+
+static bool read_oat_stamp(char *buf, size_t size) {
+    FILE *f = fopen(SERVER_OAT_STAMP_PATH, "r");
+    if (!f) return false;
+    bool res = fgets(buf, (int) size, f) != nullptr;
+    fclose(f);
+    return res;
+}
+
+static void get_build_fingerprint(char *buf) {
+    if (__system_property_get("ro.build.fingerprint", buf) <= 0) {
+        strcpy(buf, "unknown");
+    }
+}
+
+/*
+ * Copies the server dex from the manager if it has changed. Returns false if there is no usable
+ * dex, the server then runs from the apk. needs_compile is set if the odex is missing or out of
+ * date, an OTA changes the boot image the odex is compiled against.
+ */
+static bool prepare_server_dex(const char *source, bool *needs_compile) {
+    *needs_compile = false;
+
+    if (!source || access(source, R_OK) != 0) {
+        return false;
+    }
+
+    if (!is_same_file_content(source, SERVER_DEX_PATH)) {
+        printf("info: updating server dex\n");
+        fflush(stdout);
+
+        unlink(SERVER_ODEX_PATH);
+        unlink(SERVER_VDEX_PATH);
+        unlink(SERVER_OAT_STAMP_PATH);
+
+        // Copy and rename, a running server keeps the old file
+        char tmp[PATH_MAX];
+        snprintf(tmp, PATH_MAX, "%s.tmp", SERVER_DEX_PATH);
+        if (copyfile(source, tmp) != 0 || chmod(tmp, 0644) != 0) {
+            printf("warn: can't copy server dex, use apk\n");
+            fflush(stdout);
+            unlink(tmp);
+            return false;
+        }
+        if (rename(tmp, SERVER_DEX_PATH) != 0) {
+            printf("warn: can't copy server dex, use apk\n");
+            fflush(stdout);
+            unlink(tmp);
+            return false;
+        }
+    }
+
+    char stamp[PROP_VALUE_MAX + 1]{0};
+    char fingerprint[PROP_VALUE_MAX + 1]{0};
+    get_build_fingerprint(fingerprint);
+    *needs_compile = access(SERVER_ODEX_PATH, R_OK) != 0
+                     || !read_oat_stamp(stamp, sizeof(stamp))
+                     || strcmp(stamp, fingerprint) != 0;
+    return true;
+}
+
+static const char *find_dex2oat() {
+    static const char *candidates[] = {
+#ifdef __LP64__
+            "/apex/com.android.art/bin/dex2oat64",
+#else
+            "/apex/com.android.art/bin/dex2oat32",
+#endif
+            "/apex/com.android.art/bin/dex2oat",
+            "/apex/com.android.runtime/bin/dex2oat",
+            "/system/bin/dex2oat",
+            nullptr
+    };
+    for (int i = 0; candidates[i]; ++i) {
+        if (access(candidates[i], X_OK) == 0) return candidates[i];
+    }
+    return nullptr;
+}
+
+/*
+ * Compiles the server dex in a detached process, the server started meanwhile runs from the dex
+ * and picks up the odex at the next start. Outputs are written to temporary files and renamed,
+ * vdex first, so ART never sees an odex without its vdex.
+ */
+static void compile_server_dex_async() {
+    const char *dex2oat = find_dex2oat();
+    if (!dex2oat) {
+        printf("warn: dex2oat not found, server dex will not be compiled\n");
+        fflush(stdout);
+        return;
+    }
+
+    pid_t pid = fork();
+    if (pid != 0) {
+        if (pid == -1) {
+            printf("warn: can't fork to compile server dex\n");
+            fflush(stdout);
+        }
+        return;
+    }
+
+    setsid();
+    int null_fd = open("/dev/null", O_RDWR);
+    dup2(null_fd, STDIN_FILENO);
+    dup2(null_fd, STDOUT_FILENO);
+    dup2(null_fd, STDERR_FILENO);
+    setpriority(PRIO_PROCESS, 0, 10);
+
+    mkdir("/data/local/tmp/shizuku/oat", 0755);
+    mkdir(SERVER_OAT_DIR, 0755);
+
+    int api_level = android::GetApiLevel();
+    const char *odex_tmp = SERVER_ODEX_PATH ".tmp";
+    const char *vdex_tmp = SERVER_VDEX_PATH ".tmp";
+    int oat_fd = open(odex_tmp, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    int vdex_fd = api_level >= 26 ? open(vdex_tmp, O_RDWR | O_CREAT | O_TRUNC, 0644) : -1;
+    if (oat_fd == -1 || (api_level >= 26 && vdex_fd == -1)) {
+        LOGE("can't create odex");
+        _exit(1);
+    }
+
+    char arg_oat_fd[32], arg_vdex_fd[32];
+    snprintf(arg_oat_fd, sizeof(arg_oat_fd), "--oat-fd=%d", oat_fd);
+    snprintf(arg_vdex_fd, sizeof(arg_vdex_fd), "--output-vdex-fd=%d", vdex_fd);
+
+    const char *argv[16];
+    int argc = 0;
+    argv[argc++] = dex2oat;
+    argv[argc++] = "--dex-file=" SERVER_DEX_PATH;
+    argv[argc++] = "--dex-location=" SERVER_DEX_PATH;
+    argv[argc++] = arg_oat_fd;
+    argv[argc++] = "--oat-location=" SERVER_ODEX_PATH;
+    if (api_level >= 26) {
+        argv[argc++] = arg_vdex_fd;
+    }
+    if (api_level >= 28) {
+        argv[argc++] = "--class-loader-context=PCL[]";
+    }
+    argv[argc++] = "--instruction-set=" ISA;
+    argv[argc++] = "--compiler-filter=speed";
+    argv[argc++] = nullptr;
+
+    pid_t child = fork();
+    if (child == 0) {
+        execv(dex2oat, (char *const *) argv);
+        _exit(1);
+    }
+
+    int status = 0;
+    if (child == -1 || waitpid(child, &status, 0) != child || !WIFEXITED(status) || WEXITSTATUS(status) != 0) {
+        LOGE("dex2oat failed");
+        unlink(odex_tmp);
+        unlink(vdex_tmp);
+        _exit(1);
+    }
+
+    if ((api_level >= 26 && rename(vdex_tmp, SERVER_VDEX_PATH) != 0) || rename(odex_tmp, SERVER_ODEX_PATH) != 0) {
+        LOGE("can't rename odex");
+        _exit(1);
+    }
+
+    char fingerprint[PROP_VALUE_MAX + 1]{0};
+    get_build_fingerprint(fingerprint);
+    FILE *f = fopen(SERVER_OAT_STAMP_PATH, "w");
+    if (f) {
+        fputs(fingerprint, f);
+        fclose(f);
+    }
+
+    LOGD("server dex compiled");
+    _exit(0);
+}
+
 static int check_selinux(const char *s, const char *t, const char *c, const char *p) {
     int res = se::selinux_check_access(s, t, c, p, nullptr);
 #ifndef DEBUG
@@ -166,12 +381,18 @@ static int switch_cgroup() {
 }
 
 char *context = nullptr;
+static bool handoff = false;
 
 int starter_main(int argc, char *argv[]) {
     char *apk_path = nullptr;
+    char *dex_source = nullptr;
     for (int i = 0; i < argc; ++i) {
         if (strncmp(argv[i], "--apk=", 6) == 0) {
             apk_path = argv[i] + 6;
+        } else if (strncmp(argv[i], "--dex=", 6) == 0) {
+            dex_source = argv[i] + 6;
+        } else if (strcmp(argv[i], "--handoff") == 0) {
+            handoff = true;
         }
     }
 
@@ -226,6 +447,8 @@ int starter_main(int argc, char *argv[]) {
     fflush(stdout);
 
     // kill old server
+    // with --handoff, the new server takes over the running one and makes it exit, or kills it
+    // if it does not respond
     printf("info: killing old process... 아이앤지로그7\n");
     fflush(stdout);
 
@@ -239,6 +462,9 @@ int starter_main(int argc, char *argv[]) {
             && strcmp("shizuku_server_legacy", name) != 0)
             return;
 
+        if (handoff && strcmp(SERVER_NAME, name) == 0)
+            return;
+
         if (kill(pid, SIGKILL) == 0)
             printf("info: killed %d (%s)아이앤지로그8\n", pid, name);
         else if (errno == EPERM) {
@@ -278,10 +504,21 @@ int starter_main(int argc, char *argv[]) {
         exit(EXIT_FATAL_PM_PATH);
     }
 
+    bool needs_compile = false;
+    const char *dex_path = apk_path;
+    if (uid != 0 && prepare_server_dex(dex_source, &needs_compile)) {
+        dex_path = SERVER_DEX_PATH;
+        printf("info: server dex is %s\n", dex_path);
+        fflush(stdout);
+    }
+    if (needs_compile) {
+        compile_server_dex_async();
+    }
+
     printf("info: starting server...아이앤지로그11\n");
     fflush(stdout);
     LOGD("start_server");
-    start_server(apk_path, SERVER_CLASS_PATH, SERVER_NAME);
+    start_server(dex_path, apk_path, SERVER_CLASS_PATH, SERVER_NAME, handoff);
     exit(EXIT_SUCCESS);
 }
 
@@ -2,6 +2,7 @@
 
 SOURCE_PATH="%%%STARTER_PATH%%%"
 STARTER_PATH="/data/local/tmp/shizuku_starter"
+SERVER_DEX_PATH="%%%SERVER_DEX_PATH%%%"
 
 echo "info: start.sh begin"
 
@@ -39,7 +40,7 @@ fi
 
 if [ -f $STARTER_PATH ]; then
   echo "info: exec $STARTER_PATH"
-    $STARTER_PATH "$1"
+    $STARTER_PATH "$@" --dex="$SERVER_DEX_PATH"
     result=$?
     if [ ${result} -ne 0 ]; then
         echo "info: shizuku_starter exit with non-zero value $result"
@@ -0,0 +1,42 @@
+-repackageclasses rikka.shizuku
+
+# Kotlin
+
+-assumenosideeffects class kotlin.jvm.internal.Intrinsics {
+	public static void checkExpressionValueIsNotNull(...);
+	public static void checkNotNullExpressionValue(...);
+	public static void checkReturnedValueIsNotNull(...);
+	public static void checkFieldIsNotNull(...);
+	public static void checkParameterIsNotNull(...);
+}
+
+# Unmarshalled by name in the manager and in apps
+-keepnames class moe.shizuku.api.BinderContainer
+
+# Missing class android.app.IProcessObserver$Stub
+# Missing class android.app.IUidObserver$Stub
+-keepclassmembers class rikka.hidden.compat.adapter.ProcessObserverAdapter {
+    <methods>;
+}
+
+-keepclassmembers class rikka.hidden.compat.adapter.UidObserverAdapter {
+    <methods>;
+}
+
+# Entrance of Shizuku service
+-keep class rikka.shizuku.server.ShizukuService {
+    public static void main(java.lang.String[]);
+}
+
+# User services are started from the manager apk, the server passes this class name
+-keep class moe.shizuku.starter.ServiceStarter {
+    public static void main(java.lang.String[]);
+}
+
+#noinspection ShrinkerUnresolvedReference
+-assumenosideeffects class rikka.shizuku.server.util.Logger {
+    public *** d(...);
+}
+
+-keepattributes SourceFile,LineNumberTable
+-renamesourcefileattribute SourceFile
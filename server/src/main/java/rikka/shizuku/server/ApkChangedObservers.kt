@@ -2,52 +2,89 @@ package rikka.shizuku.server
 
 import android.os.FileObserver
 import android.util.Log
+import rikka.shizuku.server.ktx.workerHandler
 import java.io.File
-import java.util.*
+import java.util.concurrent.CopyOnWriteArraySet
 
 interface ApkChangedListener {
     fun onApkChanged()
 }
 
-private val observers = Collections.synchronizedMap(HashMap<String, ApkChangedObserver>())
-
+/**
+ * Tells listeners when an APK is deleted, which happens when its package is updated or removed.
+ *
+ * There is one observer for each APK directory, shared by all listeners of APKs in it, and all
+ * [FileObserver]s share the inotify instance and the thread of the framework. Events are handed
+ * over to the worker thread and merged within [DEBOUNCE_DELAY], so listeners do not block the
+ * inotify thread and a burst of events is delivered once.
+ */
 object ApkChangedObservers {
 
+    private const val DEBOUNCE_DELAY = 500L
+
+    private val observers = HashMap<String, ApkChangedObserver>()
+
     @JvmStatic
     fun start(apkPath: String, listener: ApkChangedListener) {
         // inotify watchs inode, if the there are still processes holds the file, DELTE_SELF will not be triggered
         // so we need to watch the parent folder
 
         val path = File(apkPath).parent!!
-        val observer = observers.getOrPut(path) {
-            ApkChangedObserver(path).apply {
-                startWatching()
+        synchronized(observers) {
+            val observer = observers.getOrPut(path) {
+                ApkChangedObserver(path).apply {
+                    startWatching()
+                }
             }
+            observer.addListener(listener)
         }
-        observer.addListener(listener)
     }
 
     @JvmStatic
     fun stop(listener: ApkChangedListener) {
-        val pathToRemove = mutableListOf<String>()
+        synchronized(observers) {
+            val iterator = observers.values.iterator()
+            while (iterator.hasNext()) {
+                val observer = iterator.next()
+                if (observer.removeListener(listener) && !observer.hasListeners()) {
+                    iterator.remove()
+                    observer.stopWatching()
+                }
+            }
+        }
+    }
 
-        for ((path, observer) in observers) {
-            observer.removeListener(listener)
+    internal fun onApkDeleted(observer: ApkChangedObserver) {
+        workerHandler.removeCallbacks(observer.dispatcher)
+        workerHandler.postDelayed(observer.dispatcher, DEBOUNCE_DELAY)
+    }
 
-            if (!observer.hasListeners()) {
-                pathToRemove.add(path)
+    internal fun dispatch(observer: ApkChangedObserver) {
+        // The directory is gone, listeners that still need to watch start again with the new path
+        val listeners = synchronized(observers) {
+            if (observers[observer.path] !== observer) {
+                return
             }
+            observers.remove(observer.path)
+            observer.stopWatching()
+            observer.getListeners()
         }
 
-        for (path in pathToRemove) {
-            observers.remove(path)?.stopWatching()
+        for (listener in listeners) {
+            try {
+                listener.onApkChanged()
+            } catch (e: Throwable) {
+                Log.w("ShizukuServer", "onApkChanged", e)
+            }
         }
     }
 }
 
-class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE) {
+class ApkChangedObserver(val path: String) : FileObserver(path, DELETE) {
+
+    private val listeners = CopyOnWriteArraySet<ApkChangedListener>()
 
-    private val listeners = mutableSetOf<ApkChangedListener>()
+    internal val dispatcher = Runnable { ApkChangedObservers.dispatch(this) }
 
     fun addListener(listener: ApkChangedListener): Boolean {
         return listeners.add(listener)
@@ -61,6 +98,10 @@ class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE)
         return listeners.isNotEmpty()
     }
 
+    fun getListeners(): List<ApkChangedListener> {
+        return ArrayList(listeners)
+    }
+
     override fun onEvent(event: Int, path: String?) {
         Log.d("ShizukuServer", "onEvent: ${eventToString(event)} $path")
 
@@ -69,8 +110,7 @@ class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE)
         }
 
         if (path == "base.apk") {
-            stopWatching()
-            ArrayList(listeners).forEach { it.onApkChanged() }
+            ApkChangedObservers.onApkDeleted(this)
         }
     }
 
@@ -0,0 +1,195 @@
+package rikka.shizuku.server;
+
+import android.os.Binder;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Sends the server binder to apps with bounded concurrency.
+ * <p>
+ * Targets are delivered by priority, the manager first, then apps that have a running process,
+ * then everything else. A target whose provider is dead is retried later with backoff instead
+ * of holding a worker.
+ */
+public class BinderFanOut {
+
+    private static final Logger LOGGER = new Logger("BinderFanOut");
+
+    public static final int PRIORITY_MANAGER = 0;
+    public static final int PRIORITY_RUNNING = 1;
+    public static final int PRIORITY_OTHER = 2;
+
+    static final int RESULT_SENT = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_PROVIDER_DEAD = 2;
+
+    private static final int MAX_PARALLEL = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_INITIAL_DELAY = 1000;
+
+    private final Binder binder;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Runnable> idleActions = new ArrayList<>();
+    private int pending;
+
+    public BinderFanOut(Binder binder) {
+        this.binder = binder;
+
+        // Runnables are executed directly (never submitted), so the queue can order Targets
+        executor = new ThreadPoolExecutor(MAX_PARALLEL, MAX_PARALLEL, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> new Thread(r, "BinderFanOut"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private class Target implements Runnable, Comparable<Target> {
+
+        private final String packageName;
+        private final int userId;
+        private final int priority;
+        private final Runnable onDone;
+        private final long enqueueTime = SystemClock.elapsedRealtime();
+
+        private long order;
+        private int attempt;
+
+        private Target(String packageName, int userId, int priority, Runnable onDone) {
+            this.packageName = packageName;
+            this.userId = userId;
+            this.priority = priority;
+            this.onDone = onDone;
+        }
+
+        @Override
+        public int compareTo(Target o) {
+            if (priority != o.priority) {
+                return Integer.compare(priority, o.priority);
+            }
+            return Long.compare(order, o.order);
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            int result;
+            try {
+                result = ShizukuService.sendBinderToUserApp(binder, packageName, userId, attempt == 0);
+            } catch (Throwable tr) {
+                LOGGER.e(tr, "send binder to %d:%s", userId, packageName);
+                result = RESULT_FAILED;
+            }
+            long end = SystemClock.elapsedRealtime();
+            attempt++;
+
+            if (result == RESULT_PROVIDER_DEAD && attempt < MAX_ATTEMPTS) {
+                long delay = RETRY_INITIAL_DELAY << (attempt - 1);
+                LOGGER.w("provider of %d:%s is dead, retry in %dms", userId, packageName, delay);
+                HandlerKt.getWorkerHandler().postDelayed(() -> enqueue(this), delay);
+                return;
+            }
+
+            LOGGER.i("send binder to %d:%s: %s, priority=%d, attempts=%d, call=%dms, total=%dms",
+                    userId, packageName, result == RESULT_SENT ? "sent" : "failed",
+                    priority, attempt, end - start, end - enqueueTime);
+
+            if (onDone != null) {
+                onDone.run();
+            }
+            onTargetDone();
+        }
+    }
+
+    private void enqueue(Target target) {
+        target.order = sequence.getAndIncrement();
+        executor.execute(target);
+    }
+
+    /**
+     * Sends the binder to a package, {@code onDone} runs once it is sent or has given up.
+     */
+    public void send(@NonNull String packageName, int userId, int priority, @Nullable Runnable onDone) {
+        synchronized (this) {
+            pending++;
+        }
+        enqueue(new Target(packageName, userId, priority, onDone));
+    }
+
+    /**
+     * Runs {@code action} once nothing is queued, in progress or waiting for a retry.
+     */
+    public void runWhenIdle(@NonNull Runnable action) {
+        synchronized (this) {
+            if (pending > 0) {
+                idleActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private void onTargetDone() {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (--pending > 0 || idleActions.isEmpty()) {
+                return;
+            }
+            actions = new ArrayList<>(idleActions);
+            idleActions.clear();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * Returns packages that have a process running, from the process names in /proc.
+     */
+    @NonNull
+    public static Set<String> getRunningPackages() {
+        Set<String> packages = new HashSet<>();
+        File[] files = new File("/proc").listFiles();
+        if (files == null) {
+            return packages;
+        }
+
+        byte[] buffer = new byte[256];
+        for (File file : files) {
+            String name = file.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+
+            try (FileInputStream in = new FileInputStream(new File(file, "cmdline"))) {
+                int len = in.read(buffer);
+                if (len <= 0) {
+                    continue;
+                }
+
+                int end = 0;
+                while (end < len && buffer[end] != 0 && buffer[end] != ':') {
+                    end++;
+                }
+                packages.add(new String(buffer, 0, end));
+            } catch (IOException ignored) {
+            }
+        }
+        return packages;
+    }
+}
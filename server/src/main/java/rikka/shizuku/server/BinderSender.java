@@ -6,20 +6,19 @@ import static android.app.ActivityManagerHidden.UID_OBSERVER_GONE;
 import static android.app.ActivityManagerHidden.UID_OBSERVER_IDLE;
 
 import android.app.ActivityManagerHidden;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
-import android.text.TextUtils;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.RequiresApi;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.ActivityManagerApis;
-import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.adapter.ProcessObserverAdapter;
 import rikka.hidden.compat.adapter.UidObserverAdapter;
@@ -29,27 +28,31 @@ public class BinderSender {
 
     private static final Logger LOGGER = new Logger("BinderSender");
 
-    private static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
-    private static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
+    private static final String PERMISSION_MANAGER = ServerConstants.PERMISSION_MANAGER;
 
     private static ShizukuService sShizukuService;
 
+    // Observer callbacks only queue the uid, package lookups run on this thread and the delivery
+    // runs on BinderFanOut
+    private static Handler sDispatchHandler;
+    private static final SparseIntArray PENDING_UIDS = new SparseIntArray();
+
     private static class ProcessObserver extends ProcessObserverAdapter {
 
-        private static final List<Integer> PID_LIST = new ArrayList<>();
+        private static final SparseBooleanArray PID_LIST = new SparseBooleanArray();
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
             LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
 
             synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid) || !foregroundActivities) {
+                if (PID_LIST.get(pid) || !foregroundActivities) {
                     return;
                 }
-                PID_LIST.add(pid);
+                PID_LIST.put(pid, true);
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
 
         @Override
@@ -57,10 +60,7 @@ public class BinderSender {
             LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
 
             synchronized (PID_LIST) {
-                int index = PID_LIST.indexOf(pid);
-                if (index != -1) {
-                    PID_LIST.remove(index);
-                }
+                PID_LIST.delete(pid);
             }
         }
 
@@ -69,20 +69,20 @@ public class BinderSender {
             LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
 
             synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid)) {
+                if (PID_LIST.get(pid)) {
                     return;
                 }
-                PID_LIST.add(pid);
+                PID_LIST.put(pid, true);
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private static class UidObserver extends UidObserverAdapter {
 
-        private static final List<Integer> UID_LIST = new ArrayList<>();
+        private static final SparseBooleanArray UID_LIST = new SparseBooleanArray();
 
         @Override
         public void onUidActive(int uid) throws RemoteException {
@@ -116,54 +116,96 @@ public class BinderSender {
 
         private void uidStarts(int uid) throws RemoteException {
             synchronized (UID_LIST) {
-                if (UID_LIST.contains(uid)) {
+                if (UID_LIST.get(uid)) {
                     LOGGER.v("Uid %d already starts", uid);
                     return;
                 }
-                UID_LIST.add(uid);
+                UID_LIST.put(uid, true);
                 LOGGER.v("Uid %d starts", uid);
             }
 
-            sendBinder(uid, -1);
+            enqueue(uid, -1);
         }
 
         private void uidGone(int uid) {
             synchronized (UID_LIST) {
-                int index = UID_LIST.indexOf(uid);
-                if (index != -1) {
-                    UID_LIST.remove(index);
+                if (UID_LIST.get(uid)) {
+                    UID_LIST.delete(uid);
                     LOGGER.v("Uid %d dead", uid);
                 }
             }
         }
     }
 
+    /**
+     * Queues a uid for {@link #sendBinder(int, int)} on the dispatch thread. Events for a uid that
+     * is already queued are merged into the queued one, keeping a known pid.
+     */
+    private static void enqueue(int uid, int pid) {
+        synchronized (PENDING_UIDS) {
+            if (PENDING_UIDS.indexOfKey(uid) >= 0) {
+                if (pid != -1) {
+                    PENDING_UIDS.put(uid, pid);
+                }
+                return;
+            }
+            PENDING_UIDS.put(uid, pid);
+        }
+
+        sDispatchHandler.post(() -> dispatch(uid));
+    }
+
+    private static void dispatch(int uid) {
+        int pid;
+        synchronized (PENDING_UIDS) {
+            pid = PENDING_UIDS.get(uid, -1);
+            PENDING_UIDS.delete(uid);
+        }
+
+        try {
+            sendBinder(uid, pid);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "sendBinder to uid %d", uid);
+        }
+    }
+
     private static void sendBinder(int uid, int pid) throws RemoteException {
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
-        if (packages.isEmpty())
+        ClientPackageIndex index = sShizukuService.getClientPackageIndex();
+        int userId = uid / 100000;
+
+        // Most uids are neither clients nor managers, they are rejected by the index without IPC.
+        // A package installed since the last update is found by catching up with the changed
+        // packages, which is rate limited, or by looking up the packages of the uid where
+        // changed packages are not available. Uids found to be neither are remembered, so
+        // catching up is only repeated for them after a package change.
+        List<ClientPackageIndex.Entry> entries = index.getEntriesForUid(uid);
+        if (entries.isEmpty() && index.catchUp(uid)) {
+            entries = index.getEntriesForUid(uid);
+        }
+        if (entries.isEmpty())
             return;
 
-        LOGGER.d("sendBinder to uid %d: packages=%s", uid, TextUtils.join(", ", packages));
+        LOGGER.d("sendBinder to uid %d: %d entries", uid, entries.size());
 
-        int userId = uid / 100000;
-        for (String packageName : packages) {
-            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-            if (pi == null || pi.requestedPermissions == null)
+        for (ClientPackageIndex.Entry entry : entries) {
+            if (entry.role != ClientPackageIndex.ROLE_MANAGER)
                 continue;
 
-            if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
-                boolean granted;
-                if (pid == -1)
-                    granted = PermissionManagerApis.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
-                else
-                    granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
+            boolean granted;
+            if (pid == -1)
+                granted = PermissionManagerApis.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
+            else
+                granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
 
-                if (granted) {
-                    ShizukuService.sendBinderToManger(sShizukuService, userId);
-                    return;
-                }
-            } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId);
+            if (granted) {
+                sShizukuService.getBinderFanOut().send(ServerConstants.MANAGER_APPLICATION_ID, userId, BinderFanOut.PRIORITY_MANAGER, null);
+                return;
+            }
+        }
+
+        for (ClientPackageIndex.Entry entry : entries) {
+            if (entry.role == ClientPackageIndex.ROLE_CLIENT) {
+                sShizukuService.getBinderFanOut().send(entry.packageName, userId, BinderFanOut.PRIORITY_RUNNING, null);
                 return;
             }
         }
@@ -172,6 +214,10 @@ public class BinderSender {
     public static void register(ShizukuService shizukuService) {
         sShizukuService = shizukuService;
 
+        HandlerThread dispatchThread = new HandlerThread("BinderSender");
+        dispatchThread.start();
+        sDispatchHandler = new Handler(dispatchThread.getLooper());
+
         try {
             ActivityManagerApis.registerProcessObserver(new ProcessObserver());
         } catch (Throwable tr) {
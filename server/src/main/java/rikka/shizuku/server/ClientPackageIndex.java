@@ -0,0 +1,595 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.PERMISSION;
+import static rikka.shizuku.server.ServerConstants.PERMISSION_MANAGER;
+
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import kotlin.collections.ArraysKt;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+import rikka.shizuku.server.util.UserHandleCompat;
+
+/**
+ * Persisted index of the packages that request {@link ServerConstants#PERMISSION} (clients) or
+ * {@link ServerConstants#PERMISSION_MANAGER} (managers).
+ * <p>
+ * At boot only the packages changed since the saved {@link ChangedPackages} sequence number of each
+ * user are queried. Sequence numbers do not survive a reboot, so a full scan is done when the boot
+ * id differs, when the sequence number is not known, or before API 26. At runtime the index is
+ * updated from {@link #onPackageChanged(String, int)}, which the manager calls for package
+ * broadcasts, and from {@link #catchUp(int)} which applies the changed packages since the last
+ * sequence number, or looks up the packages of the uid where changed packages are not available.
+ * Uids found to be neither clients nor managers are remembered, so that catching up is not
+ * repeated for them until a package of their user changes.
+ * <p>
+ * Entries are also indexed by uid in a snapshot that is replaced after every change, so that
+ * {@link #getEntriesForUid(int)} answers without locking or IPC.
+ */
+public class ClientPackageIndex {
+
+    private static final Logger LOGGER = new Logger("ClientPackageIndex");
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    private static final long WRITE_DELAY = 10 * 1000;
+
+    private static final File FILE = new File("/data/local/tmp/shizuku/client_packages.json");
+    private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+
+    private static final int LATEST_VERSION = 2;
+
+    private static final long CATCH_UP_INTERVAL = 2000;
+
+    private static final long NON_CLIENT_TIMEOUT = 10 * 60 * 1000;
+
+    public static final int ROLE_CLIENT = 0;
+    public static final int ROLE_MANAGER = 1;
+
+    public static class Entry {
+
+        @SerializedName("package")
+        public final String packageName;
+
+        @SerializedName("user")
+        public final int userId;
+
+        @SerializedName("uid")
+        public int uid;
+
+        @SerializedName("versionCode")
+        public long versionCode;
+
+        @SerializedName("lastUpdateTime")
+        public long lastUpdateTime;
+
+        @SerializedName("role")
+        public int role;
+
+        public Entry(String packageName, int userId) {
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+    }
+
+    private static class State {
+
+        @SerializedName("version")
+        public int version = LATEST_VERSION;
+
+        @SerializedName("bootId")
+        public String bootId;
+
+        @SerializedName("fingerprint")
+        public String fingerprint;
+
+        @SerializedName("sequenceNumbers")
+        public Map<Integer, Integer> sequenceNumbers = new HashMap<>();
+
+        @SerializedName("entries")
+        public List<Entry> entries = new ArrayList<>();
+    }
+
+    private static State load() {
+        FileInputStream stream;
+        try {
+            stream = ATOMIC_FILE.openRead();
+        } catch (FileNotFoundException e) {
+            LOGGER.i("no existing index file " + ATOMIC_FILE.getBaseFile());
+            return new State();
+        }
+
+        State state = null;
+        try {
+            state = GSON.fromJson(new InputStreamReader(stream), State.class);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "load index");
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOGGER.w("failed to close: " + e);
+            }
+        }
+
+        if (state == null || state.version != LATEST_VERSION || state.entries == null || state.sequenceNumbers == null) {
+            return new State();
+        }
+        return state;
+    }
+
+    private static void write(String json) {
+        synchronized (ATOMIC_FILE) {
+            FileOutputStream stream;
+            try {
+                stream = ATOMIC_FILE.startWrite();
+            } catch (IOException e) {
+                LOGGER.w("failed to write index: " + e);
+                return;
+            }
+
+            try {
+                stream.write(json.getBytes());
+
+                ATOMIC_FILE.finishWrite(stream);
+                LOGGER.v("index saved");
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
+                ATOMIC_FILE.failWrite(stream);
+            }
+        }
+    }
+
+    @Nullable
+    private static String readBootId() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/sys/kernel/random/boot_id"))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            LOGGER.w("failed to read boot_id: " + e);
+            return null;
+        }
+    }
+
+    private static ChangedPackages getChangedPackages(int sequenceNumber, int userId) throws ReflectiveOperationException {
+        IBinder binder = ServiceManager.getService("package");
+        Object pm = Class.forName("android.content.pm.IPackageManager$Stub")
+                .getMethod("asInterface", IBinder.class)
+                .invoke(null, binder);
+        return (ChangedPackages) pm.getClass()
+                .getMethod("getChangedPackages", int.class, int.class)
+                .invoke(pm, sequenceNumber, userId);
+    }
+
+    /**
+     * @return role of the package, or -1 if it requests neither permission
+     */
+    private static int getRole(@Nullable PackageInfo pi) {
+        if (pi == null || pi.applicationInfo == null || pi.requestedPermissions == null) {
+            return -1;
+        }
+        if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
+            return ROLE_MANAGER;
+        }
+        if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+            return ROLE_CLIENT;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getVersionCode(PackageInfo pi) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? pi.getLongVersionCode() : pi.versionCode;
+    }
+
+    private final Runnable writeRunner = new Runnable() {
+
+        @Override
+        public void run() {
+            String json;
+            synchronized (ClientPackageIndex.this) {
+                json = GSON.toJson(state);
+            }
+            write(json);
+        }
+    };
+
+    private final State state;
+
+    // Guarded by catchUpLock, so that catchUp() never waits for reconcile() or a write
+    private final Object catchUpLock = new Object();
+    private final SparseLongArray lastCatchUpTimes = new SparseLongArray();
+    private final SparseIntArray catchUpSequenceNumbers = new SparseIntArray();
+    private final SparseLongArray nonClientUids = new SparseLongArray();
+    private boolean reconciled;
+
+    private volatile SparseArray<List<Entry>> byUid = new SparseArray<>();
+
+    public ClientPackageIndex() {
+        state = load();
+        publishLocked();
+    }
+
+    private void publishLocked() {
+        SparseArray<List<Entry>> index = new SparseArray<>();
+        for (Entry entry : state.entries) {
+            List<Entry> list = index.get(entry.uid);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                index.put(entry.uid, list);
+            }
+            list.add(entry);
+        }
+        byUid = index;
+    }
+
+    /**
+     * Brings the index up to date with the package manager, called once at boot.
+     */
+    public synchronized void reconcile() {
+        String bootId = readBootId();
+        boolean sameBoot = bootId != null
+                && bootId.equals(state.bootId)
+                && Build.FINGERPRINT.equals(state.fingerprint);
+
+        List<Integer> userIds = UserManagerApis.getUserIdsNoThrow();
+        for (Iterator<Entry> it = state.entries.iterator(); it.hasNext(); ) {
+            if (!userIds.contains(it.next().userId)) {
+                it.remove();
+            }
+        }
+
+        for (int userId : userIds) {
+            Integer sequenceNumber = state.sequenceNumbers.get(userId);
+            if (!sameBoot || sequenceNumber == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                scanLocked(userId);
+                continue;
+            }
+
+            ChangedPackages changed;
+            try {
+                changed = getChangedPackages(sequenceNumber, userId);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "getChangedPackages");
+                scanLocked(userId);
+                continue;
+            }
+
+            if (changed == null) {
+                LOGGER.i("user %d: no package changes since %d", userId, sequenceNumber);
+                continue;
+            }
+
+            LOGGER.i("user %d: %d packages changed since %d", userId, changed.getPackageNames().size(), sequenceNumber);
+            applyChangesLocked(changed, userId);
+        }
+
+        state.bootId = bootId;
+        state.fingerprint = Build.FINGERPRINT;
+        publishLocked();
+        scheduleWriteLocked();
+
+        synchronized (catchUpLock) {
+            catchUpSequenceNumbers.clear();
+            for (Map.Entry<Integer, Integer> entry : state.sequenceNumbers.entrySet()) {
+                catchUpSequenceNumbers.put(entry.getKey(), entry.getValue());
+            }
+            nonClientUids.clear();
+            reconciled = true;
+        }
+    }
+
+    private boolean applyChangesLocked(ChangedPackages changed, int userId) {
+        boolean updated = false;
+        for (String packageName : changed.getPackageNames()) {
+            updated |= updateLocked(packageName, userId);
+        }
+        state.sequenceNumbers.put(userId, changed.getSequenceNumber());
+        return updated;
+    }
+
+    private void forgetNonClientsLocked(int userId) {
+        for (int i = nonClientUids.size() - 1; i >= 0; i--) {
+            if (UserHandleCompat.getUserId(nonClientUids.keyAt(i)) == userId) {
+                nonClientUids.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Brings the entries of a uid that is not in the index up to date, for packages installed
+     * while nobody called {@link #onPackageChanged(String, int)}.
+     * <p>
+     * The packages changed since the last sequence number of the user are applied, at most once
+     * every {@link #CATCH_UP_INTERVAL}, at the cost of a single IPC. Where changed packages are
+     * not available (before API 26, before {@link #reconcile()}, or when the call fails), the
+     * packages of the uid are looked up with {@link PackageManager#GET_PERMISSIONS} instead. A uid
+     * that turns out to be neither a client nor a manager is not looked up again until a package
+     * of its user changes, or for {@link #NON_CLIENT_TIMEOUT}.
+     * <p>
+     * The package manager is queried without holding the index lock, which is only taken to apply
+     * changes.
+     *
+     * @return whether any entry changed
+     */
+    public boolean catchUp(int uid) {
+        int userId = UserHandleCompat.getUserId(uid);
+        long now = SystemClock.elapsedRealtime();
+
+        int sequenceNumber = -1;
+        synchronized (catchUpLock) {
+            long checked = nonClientUids.get(uid, 0);
+            if (checked != 0 && now - checked < NON_CLIENT_TIMEOUT) {
+                return false;
+            }
+
+            // Saved sequence numbers may be from an earlier boot until reconcile() has run
+            if (reconciled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                sequenceNumber = catchUpSequenceNumbers.get(userId, -1);
+            }
+            if (sequenceNumber != -1) {
+                long last = lastCatchUpTimes.get(userId, 0);
+                if (last != 0 && now - last < CATCH_UP_INTERVAL) {
+                    return false;
+                }
+                lastCatchUpTimes.put(userId, now);
+            }
+        }
+
+        boolean updated;
+        if (sequenceNumber != -1) {
+            updated = catchUpChanges(uid, userId, sequenceNumber);
+        } else {
+            updated = refreshUid(uid, userId);
+        }
+
+        if (getEntriesForUid(uid).isEmpty()) {
+            synchronized (catchUpLock) {
+                nonClientUids.put(uid, now);
+            }
+        }
+        return updated;
+    }
+
+    private boolean catchUpChanges(int uid, int userId, int sequenceNumber) {
+        ChangedPackages changed;
+        try {
+            changed = getChangedPackages(sequenceNumber, userId);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "getChangedPackages");
+            return refreshUid(uid, userId);
+        }
+        if (changed == null) {
+            return false;
+        }
+
+        List<String> packageNames = changed.getPackageNames();
+        List<PackageInfo> packageInfos = new ArrayList<>(packageNames.size());
+        for (String packageName : packageNames) {
+            packageInfos.add(PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId));
+        }
+
+        boolean updated = false;
+        synchronized (this) {
+            for (int i = 0; i < packageNames.size(); i++) {
+                updated |= applyLocked(packageNames.get(i), userId, packageInfos.get(i));
+            }
+            state.sequenceNumbers.put(userId, changed.getSequenceNumber());
+            if (updated) {
+                publishLocked();
+            }
+            scheduleWriteLocked();
+        }
+
+        synchronized (catchUpLock) {
+            if (changed.getSequenceNumber() > catchUpSequenceNumbers.get(userId, -1)) {
+                catchUpSequenceNumbers.put(userId, changed.getSequenceNumber());
+            }
+            forgetNonClientsLocked(userId);
+        }
+        return updated;
+    }
+
+    private boolean refreshUid(int uid, int userId) {
+        List<String> packageNames = PackageManagerApis.getPackagesForUidNoThrow(uid);
+        List<PackageInfo> packageInfos = new ArrayList<>(packageNames.size());
+        boolean found = false;
+        for (String packageName : packageNames) {
+            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            packageInfos.add(pi);
+            found |= getRole(pi) != -1;
+        }
+
+        // Nothing to add or remove, do not wait for the lock, which reconcile() holds during a scan
+        if (!found && getEntriesForUid(uid).isEmpty()) {
+            return false;
+        }
+
+        boolean updated = false;
+        synchronized (this) {
+            for (int i = 0; i < packageNames.size(); i++) {
+                updated |= applyLocked(packageNames.get(i), userId, packageInfos.get(i));
+            }
+            if (updated) {
+                LOGGER.v("uid %d changed", uid);
+                publishLocked();
+                scheduleWriteLocked();
+            }
+        }
+        return updated;
+    }
+
+    private void scanLocked(int userId) {
+        int sequenceNumber = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Take the sequence number before the scan, so that changes during the scan are seen next time
+            try {
+                ChangedPackages changed = getChangedPackages(0, userId);
+                if (changed != null) {
+                    sequenceNumber = changed.getSequenceNumber();
+                }
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "getChangedPackages");
+            }
+        }
+
+        for (Iterator<Entry> it = state.entries.iterator(); it.hasNext(); ) {
+            if (it.next().userId == userId) {
+                it.remove();
+            }
+        }
+
+        int count = 0;
+        for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+            int role = getRole(pi);
+            if (role != -1) {
+                putLocked(pi, userId, role);
+                count++;
+            }
+        }
+        LOGGER.i("user %d: full scan, %d packages", userId, count);
+
+        if (sequenceNumber != -1) {
+            state.sequenceNumbers.put(userId, sequenceNumber);
+        } else {
+            state.sequenceNumbers.remove(userId);
+        }
+    }
+
+    private Entry findLocked(String packageName, int userId) {
+        for (Entry entry : state.entries) {
+            if (entry.userId == userId && Objects.equals(entry.packageName, packageName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void putLocked(PackageInfo pi, int userId, int role) {
+        Entry entry = findLocked(pi.packageName, userId);
+        if (entry == null) {
+            entry = new Entry(pi.packageName, userId);
+            state.entries.add(entry);
+        }
+        entry.uid = pi.applicationInfo.uid;
+        entry.versionCode = getVersionCode(pi);
+        entry.lastUpdateTime = pi.lastUpdateTime;
+        entry.role = role;
+    }
+
+    /**
+     * @return whether the entry of the package changed
+     */
+    private boolean updateLocked(String packageName, int userId) {
+        PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+        return applyLocked(packageName, userId, pi);
+    }
+
+    /**
+     * @param pi package info with {@link PackageManager#GET_PERMISSIONS}, or null if the package
+     *           is not installed
+     * @return whether the entry of the package changed
+     */
+    private boolean applyLocked(String packageName, int userId, @Nullable PackageInfo pi) {
+        Entry entry = findLocked(packageName, userId);
+        int role = getRole(pi);
+        if (role != -1) {
+            if (entry != null && entry.lastUpdateTime == pi.lastUpdateTime && entry.versionCode == getVersionCode(pi)
+                    && entry.uid == pi.applicationInfo.uid) {
+                return false;
+            }
+            putLocked(pi, userId, role);
+            return true;
+        } else if (entry != null) {
+            state.entries.remove(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the entry of a package after it is added, updated or removed.
+     */
+    public void onPackageChanged(@NonNull String packageName, int userId) {
+        synchronized (this) {
+            if (updateLocked(packageName, userId)) {
+                LOGGER.v("package %d:%s changed", userId, packageName);
+                publishLocked();
+                scheduleWriteLocked();
+            }
+        }
+
+        synchronized (catchUpLock) {
+            forgetNonClientsLocked(userId);
+        }
+    }
+
+    private void scheduleWriteLocked() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            if (HandlerKt.getWorkerHandler().hasCallbacks(writeRunner)) {
+                return;
+            }
+        } else {
+            HandlerKt.getWorkerHandler().removeCallbacks(writeRunner);
+        }
+        HandlerKt.getWorkerHandler().postDelayed(writeRunner, WRITE_DELAY);
+    }
+
+    /**
+     * Returns the entries of a role.
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries(int role) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : state.entries) {
+            if (entry.role == role) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the entries of a uid without locking, empty for uids that are neither clients nor
+     * managers.
+     */
+    @NonNull
+    public List<Entry> getEntriesForUid(int uid) {
+        List<Entry> entries = byUid.get(uid);
+        return entries != null ? entries : Collections.emptyList();
+    }
+}
@@ -5,8 +5,10 @@ public class ServerConstants {
     public static final int MANAGER_APP_NOT_FOUND = 50;
 
     public static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
+    public static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
     public static final String MANAGER_APPLICATION_ID = "moe.shizuku.privileged.api";
     public static final String REQUEST_PERMISSION_ACTION = MANAGER_APPLICATION_ID + ".intent.action.REQUEST_PERMISSION";
 
     public static final int BINDER_TRANSACTION_getApplications = 10001;
+    public static final int BINDER_TRANSACTION_handoff = 10002;
 }
@@ -0,0 +1,353 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
+
+import android.content.IContentProvider;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.system.Os;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import moe.shizuku.api.BinderContainer;
+import moe.shizuku.common.util.OsUtils;
+import moe.shizuku.server.IShizukuApplication;
+import rikka.hidden.compat.ActivityManagerApis;
+import rikka.shizuku.ShizukuApiConstants;
+import rikka.shizuku.server.api.IContentProviderUtils;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Hands the state of a running server over to a new server started to replace it.
+ * <p>
+ * The new server gets the binder of the old one from the manager app and calls
+ * {@link ServerConstants#BINDER_TRANSACTION_handoff} on it. The old server replies with its
+ * attached clients and the user services hosted in their own processes, then exits. The new
+ * server takes them over, so service processes keep running and their connections stay
+ * connected, and only the clients that were attached need the new binder.
+ * <p>
+ * If there is no old server, or it does not reply in time (including servers that do not know the
+ * transaction), it is killed and the new server starts from scratch.
+ * <p>
+ * The state includes the binders of every client and user service, so the old server only hands
+ * off to a caller that looks like a server started by the starter, see {@link #isNewServer(int)}.
+ */
+public class ServerHandoff {
+
+    private static final Logger LOGGER = new Logger("ServerHandoff");
+
+    public static final String ARG_HANDOFF = "--handoff";
+
+    private static final String SERVER_NAME = "shizuku_server";
+    private static final String EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER";
+    private static final String METHOD_GET_BINDER = "getBinder";
+
+    private static final int VERSION = 1;
+    private static final long TRANSACT_TIMEOUT = 3000;
+    private static final long EXIT_TIMEOUT = 2000;
+
+    /**
+     * Delay before the old server exits, so the reply is sent first.
+     */
+    static final long EXIT_DELAY = 200;
+
+    /**
+     * A client of the old server.
+     */
+    static class Client {
+
+        final int uid;
+        final int pid;
+        final String packageName;
+        final int apiVersion;
+        final boolean allowed;
+        final IShizukuApplication application;
+
+        private Client(int uid, int pid, String packageName, int apiVersion, boolean allowed, IShizukuApplication application) {
+            this.uid = uid;
+            this.pid = pid;
+            this.packageName = packageName;
+            this.apiVersion = apiVersion;
+            this.allowed = allowed;
+            this.application = application;
+        }
+    }
+
+    /**
+     * Old server side, writes the state to the reply of the handoff transaction.
+     */
+    static void writeState(@NonNull Parcel reply, @NonNull List<ClientRecord> clients, @NonNull UserServiceManager userServiceManager) {
+        reply.writeInt(VERSION);
+        reply.writeInt(OsUtils.getPid());
+
+        reply.writeInt(clients.size());
+        for (ClientRecord client : clients) {
+            reply.writeInt(client.uid);
+            reply.writeInt(client.pid);
+            reply.writeString(client.packageName);
+            reply.writeInt(client.apiVersion);
+            reply.writeInt(client.allowed ? 1 : 0);
+            reply.writeStrongBinder(client.client.asBinder());
+        }
+
+        userServiceManager.writeUserServices(reply);
+    }
+
+    /**
+     * New server side, reads the clients from the reply of {@link #request()}. The user services
+     * follow, read them with {@link UserServiceManager#adoptUserServices(Parcel)}.
+     */
+    @NonNull
+    static List<Client> readClients(@NonNull Parcel reply) {
+        int count = reply.readInt();
+        List<Client> clients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int uid = reply.readInt();
+            int pid = reply.readInt();
+            String packageName = reply.readString();
+            int apiVersion = reply.readInt();
+            boolean allowed = reply.readInt() != 0;
+            IBinder binder = reply.readStrongBinder();
+            if (binder != null) {
+                clients.add(new Client(uid, pid, packageName, apiVersion, allowed, IShizukuApplication.Stub.asInterface(binder)));
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * New server side, asks the running server for its state. The old server is gone when this
+     * returns.
+     *
+     * @return Reply positioned at the clients, or null if there was nothing to take over. The
+     * caller recycles the reply.
+     */
+    @Nullable
+    static Parcel request() {
+        long start = SystemClock.elapsedRealtime();
+
+        IBinder binder = getServerBinder();
+        if (binder == null || !binder.pingBinder()) {
+            LOGGER.i("no running server to take over");
+            killServers();
+            return null;
+        }
+
+        CountDownLatch exited = new CountDownLatch(1);
+        try {
+            binder.linkToDeath(exited::countDown, 0);
+        } catch (Throwable e) {
+            LOGGER.i("old server is gone");
+            return null;
+        }
+
+        Parcel reply = transact(binder);
+        if (reply == null) {
+            killServers();
+            return null;
+        }
+
+        int pid;
+        try {
+            reply.readException();
+            if (reply.readInt() != VERSION) {
+                throw new IllegalStateException("unknown handoff version");
+            }
+            pid = reply.readInt();
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "handoff");
+            reply.recycle();
+            killServers();
+            return null;
+        }
+
+        try {
+            if (!exited.await(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOGGER.w("old server %d did not exit, killing", pid);
+                android.os.Process.killProcess(pid);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.w(e.getMessage(), e);
+        }
+
+        LOGGER.i("took over server %d in %dms", pid, SystemClock.elapsedRealtime() - start);
+        return reply;
+    }
+
+    @Nullable
+    private static Parcel transact(IBinder binder) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        boolean[] result = new boolean[1];
+
+        // A server stuck on something must not hold up the start
+        Thread thread = new Thread(() -> {
+            try {
+                data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+                result[0] = binder.transact(ServerConstants.BINDER_TRANSACTION_handoff, data, reply, 0);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "handoff");
+            }
+        }, "ServerHandoff");
+        thread.start();
+
+        try {
+            thread.join(TRANSACT_TIMEOUT);
+        } catch (InterruptedException e) {
+            LOGGER.w(e.getMessage(), e);
+        }
+
+        if (thread.isAlive() || !result[0]) {
+            // Leave the parcels to the thread if it is still waiting
+            LOGGER.w("old server did not hand off");
+            if (!thread.isAlive()) {
+                data.recycle();
+                reply.recycle();
+            }
+            return null;
+        }
+
+        data.recycle();
+        return reply;
+    }
+
+    @Nullable
+    private static IBinder getServerBinder() {
+        String name = MANAGER_APPLICATION_ID + ".shizuku";
+        int userId = 0;
+        IContentProvider provider = null;
+
+        try {
+            provider = ActivityManagerApis.getContentProviderExternal(name, userId, null, name);
+            if (provider == null) {
+                return null;
+            }
+
+            Bundle reply = IContentProviderUtils.callCompat(provider, null, name, METHOD_GET_BINDER, null, new Bundle());
+            if (reply == null) {
+                return null;
+            }
+
+            reply.setClassLoader(BinderContainer.class.getClassLoader());
+            BinderContainer container = reply.getParcelable(EXTRA_BINDER);
+            return container != null ? container.binder : null;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "get server binder");
+            return null;
+        } finally {
+            if (provider != null) {
+                try {
+                    ActivityManagerApis.removeContentProviderExternal(name, null);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "removeContentProviderExternal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Old server side, checks that the caller of the handoff is a new server and not some other
+     * process of the same uid (such as a user service) that got hold of the binder.
+     * <p>
+     * A new server runs app_process with the server name, is not this process, and has been
+     * detached by the starter with daemon(), so its parent is init. User service processes are
+     * children of this server.
+     */
+    static boolean isNewServer(int pid) {
+        if (pid == OsUtils.getPid()) {
+            return false;
+        }
+
+        File dir = new File("/proc", Integer.toString(pid));
+        if (!SERVER_NAME.equals(readCmdline(dir))) {
+            LOGGER.w("handoff caller %d is not %s", pid, SERVER_NAME);
+            return false;
+        }
+
+        try {
+            String exe = Os.readlink(new File(dir, "exe").getPath());
+            if (!exe.startsWith("/system/bin/app_process")) {
+                LOGGER.w("handoff caller %d runs %s", pid, exe);
+                return false;
+            }
+        } catch (Throwable e) {
+            LOGGER.w(e, "readlink exe of %d", pid);
+            return false;
+        }
+
+        int ppid = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "status")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("PPid:")) {
+                    ppid = Integer.parseInt(line.substring(5).trim());
+                    break;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.w(e, "read status of %d", pid);
+            return false;
+        }
+        if (ppid != 1) {
+            LOGGER.w("handoff caller %d has parent %d", pid, ppid);
+            return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private static String readCmdline(File dir) {
+        byte[] buffer = new byte[64];
+        try (FileInputStream in = new FileInputStream(new File(dir, "cmdline"))) {
+            int len = in.read(buffer);
+            int end = 0;
+            while (end < len && buffer[end] != 0) {
+                end++;
+            }
+            return new String(buffer, 0, end);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Kills other server processes, what the starter does when not handing off.
+     */
+    private static void killServers() {
+        File[] files = new File("/proc").listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int self = OsUtils.getPid();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+
+            int pid = Integer.parseInt(name);
+            if (pid == self) {
+                continue;
+            }
+
+            if (SERVER_NAME.equals(readCmdline(file))) {
+                LOGGER.i("kill old server %d", pid);
+                android.os.Process.killProcess(pid);
+            }
+        }
+    }
+}
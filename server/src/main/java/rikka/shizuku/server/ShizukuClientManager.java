@@ -1,10 +1,42 @@
 package rikka.shizuku.server;
 
+import static rikka.shizuku.server.ServerConstants.PERMISSION;
+
+import android.content.pm.PackageManager;
+
+import rikka.hidden.compat.PermissionManagerApis;
+
 public class ShizukuClientManager extends ClientManager<ShizukuConfigManager> {
 
+    private volatile boolean reconciled;
+
     public ShizukuClientManager(ShizukuConfigManager configManager) {
         super(configManager);
     }
-}
 
+    /**
+     * Until the config is reconciled, grants made only through the runtime permission are not in
+     * the config yet, so the permission itself is checked.
+     */
+    @Override
+    protected boolean isAllowedWithoutConfig(int uid) {
+        if (reconciled) {
+            return false;
+        }
+        try {
+            return PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
+        } catch (Throwable e) {
+            LOGGER.w(e, "checkPermission");
+            return false;
+        }
+    }
 
+    /**
+     * Called after {@link ShizukuConfigManager#reconcile}, clients attached before that take the
+     * permission from the reconciled config.
+     */
+    public void onConfigReconciled() {
+        reconciled = true;
+        refreshAllowed();
+    }
+}
@@ -5,7 +5,10 @@ import androidx.annotation.NonNull;
 import com.google.gson.annotations.SerializedName;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ShizukuConfig {
 
@@ -28,12 +31,36 @@ public class ShizukuConfig {
         @SerializedName("packages")
         public List<String> packages;
 
+        // Only set on the frozen copies published by ShizukuConfigManager, which are never modified
+        private transient Set<String> packageSet;
+
         public PackageEntry(int uid, int flags) {
             this.uid = uid;
             this.flags = flags;
             this.packages = new ArrayList<>();
         }
 
+        /**
+         * Returns a copy that indexes its packages with a hash set and must not be modified.
+         */
+        PackageEntry frozenCopy() {
+            PackageEntry copy = new PackageEntry(uid, flags);
+            if (packages != null) {
+                copy.packages = Collections.unmodifiableList(new ArrayList<>(packages));
+                copy.packageSet = new HashSet<>(packages);
+            } else {
+                copy.packages = null;
+            }
+            return copy;
+        }
+
+        public boolean containsPackage(String packageName) {
+            if (packageSet != null) {
+                return packageSet.contains(packageName);
+            }
+            return packages != null && packages.contains(packageName);
+        }
+
         @Override
         public boolean isAllowed() {
             return (flags & ConfigManager.FLAG_ALLOWED) != 0;
@@ -0,0 +1,338 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Append-only binary journal of {@link ShizukuConfig}.
+ * <p>
+ * The file starts with a header, followed by records of
+ * {@code [int length][byte type][payload][long crc32]}. A {@code PUT} record carries a whole
+ * {@link ShizukuConfig.PackageEntry}, a {@code REMOVE} record carries a uid. Loading replays the
+ * records in order, a torn or corrupted tail (from a crash in the middle of an append) is cut off.
+ * <p>
+ * Records are written to the file as soon as they are appended, and the file is synced once for
+ * each group of records appended within {@link #SYNC_DELAY}. When the journal has grown much
+ * larger than the config, it is compacted by writing a snapshot of PUT records to a new file and
+ * renaming it over the old one.
+ */
+public class ShizukuConfigJournal {
+
+    private static final Logger LOGGER = new Logger("ShizukuConfigJournal");
+
+    private static final int MAGIC = 0x534b4a4c; // "SKJL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final long SYNC_DELAY = 100;
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    private final File file;
+    private final Runnable syncRunner = this::sync;
+
+    private FileOutputStream out;
+    private int records;
+    private int liveEntries;
+    private boolean disabled;
+
+    public ShizukuConfigJournal(@NonNull File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Replays the journal. Returns null if it does not exist, has a bad header or cannot be read.
+     */
+    @Nullable
+    public synchronized ShizukuConfig load() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Map<Integer, ShizukuConfig.PackageEntry> entries = new LinkedHashMap<>();
+        long validLength = HEADER_SIZE;
+        int count = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOGGER.w("bad header in %s", file);
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                byte[] record;
+                long checksum;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        LOGGER.w("bad record length %d at %d, dropping the rest", length, validLength);
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(record, 0, record.length);
+                if (crc.getValue() != checksum) {
+                    LOGGER.w("bad checksum at %d, dropping the rest", validLength);
+                    break;
+                }
+
+                try {
+                    apply(entries, record);
+                } catch (IOException e) {
+                    LOGGER.w("bad record at %d, dropping the rest: " + e, validLength);
+                    break;
+                }
+                validLength += 4 + length + 8;
+                count++;
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "load %s", file);
+            return null;
+        }
+
+        if (validLength < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                LOGGER.w(e, "truncate %s", file);
+            }
+        }
+
+        records = count;
+        liveEntries = entries.size();
+        LOGGER.i("loaded %d entries from %d records in %dms", entries.size(), count, SystemClock.elapsedRealtime() - start);
+        return new ShizukuConfig(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * Renames the journal to a {@code .bad} file next to it, so that it can be looked at later
+     * and a new journal is started. Returns false if it could not be renamed, the journal is then
+     * never written again by this process so that it is not overwritten.
+     */
+    public synchronized boolean moveAside() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.w(e, "close %s", file);
+            }
+            out = null;
+        }
+
+        File bad = new File(file.getPath() + ".bad");
+        //noinspection ResultOfMethodCallIgnored
+        bad.delete();
+        if (!file.renameTo(bad)) {
+            LOGGER.w("failed to rename %s to %s, disabling writes", file, bad);
+            disabled = true;
+            return false;
+        }
+        LOGGER.w("moved unreadable %s to %s", file, bad);
+        records = 0;
+        liveEntries = 0;
+        return true;
+    }
+
+    private static void apply(Map<Integer, ShizukuConfig.PackageEntry> entries, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        int uid = in.readInt();
+        if (type == TYPE_PUT) {
+            ShizukuConfig.PackageEntry entry = new ShizukuConfig.PackageEntry(uid, in.readInt());
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                entry.packages.add(in.readUTF());
+            }
+            entries.remove(uid);
+            entries.put(uid, entry);
+        } else if (type == TYPE_REMOVE) {
+            entries.remove(uid);
+        } else {
+            throw new IOException("unknown record type " + type);
+        }
+    }
+
+    private static byte[] encodePut(ShizukuConfig.PackageEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_PUT);
+        out.writeInt(entry.uid);
+        out.writeInt(entry.flags);
+        List<String> packages = entry.packages != null ? entry.packages : new ArrayList<>();
+        out.writeInt(packages.size());
+        for (String packageName : packages) {
+            out.writeUTF(packageName);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRemove(int uid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_REMOVE);
+        out.writeInt(uid);
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeLong(crc.getValue());
+    }
+
+    private void openLocked() throws IOException {
+        if (out != null) {
+            return;
+        }
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            writeSnapshot(file, new ArrayList<>());
+            records = 0;
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    private void appendLocked(byte[] record) {
+        if (disabled) {
+            return;
+        }
+        try {
+            openLocked();
+
+            // One write call per record, so a crash leaves at most one torn record at the tail
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 12);
+            writeRecord(new DataOutputStream(bytes), record);
+            out.write(bytes.toByteArray());
+            records++;
+        } catch (IOException e) {
+            LOGGER.w(e, "append to %s", file);
+            return;
+        }
+
+        HandlerKt.getWorkerHandler().removeCallbacks(syncRunner);
+        HandlerKt.getWorkerHandler().postDelayed(syncRunner, SYNC_DELAY);
+    }
+
+    public synchronized void put(@NonNull ShizukuConfig.PackageEntry entry, int liveEntries) {
+        try {
+            appendLocked(encodePut(entry));
+        } catch (IOException e) {
+            LOGGER.w(e, "encode");
+        }
+        this.liveEntries = liveEntries;
+    }
+
+    public synchronized void remove(int uid, int liveEntries) {
+        try {
+            appendLocked(encodeRemove(uid));
+        } catch (IOException e) {
+            LOGGER.w(e, "encode");
+        }
+        this.liveEntries = liveEntries;
+    }
+
+    /**
+     * Returns whether the journal has enough stale records to be worth compacting.
+     */
+    public synchronized boolean shouldCompact() {
+        return records > Math.max(MIN_COMPACT_RECORDS, liveEntries * 2);
+    }
+
+    private synchronized void sync() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.w(e, "sync %s", file);
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of {@code entries}.
+     */
+    public synchronized void compact(@NonNull List<ShizukuConfig.PackageEntry> entries) {
+        if (disabled) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            writeSnapshot(tmp, entries);
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "compact %s", file);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+
+        records = entries.size();
+        liveEntries = entries.size();
+        LOGGER.v("compacted to %d records in %dms", records, SystemClock.elapsedRealtime() - start);
+    }
+
+    private static void writeSnapshot(File target, List<ShizukuConfig.PackageEntry> entries) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        target.getParentFile().mkdirs();
+
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                writeRecord(out, encodePut(entry));
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+}
@@ -2,10 +2,9 @@ package rikka.shizuku.server;
 
 import static rikka.shizuku.server.ServerConstants.PERMISSION;
 
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.util.AtomicFile;
+import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
 
@@ -15,7 +14,6 @@ import com.google.gson.GsonBuilder;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
@@ -23,31 +21,35 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
-import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
-import rikka.hidden.compat.UserManagerApis;
 import rikka.shizuku.server.ktx.HandlerKt;
 
 public class ShizukuConfigManager extends ConfigManager {
 
     private static final Gson GSON_IN = new GsonBuilder()
             .create();
-    private static final Gson GSON_OUT = new GsonBuilder()
-            .setVersion(ShizukuConfig.LATEST_VERSION)
-            .create();
-
-    private static final long WRITE_DELAY = 10 * 1000;
 
     private static final File FILE = new File("/data/local/tmp/shizuku/shizuku.json");
     private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+    private static final File MIGRATED_FILE = new File("/data/local/tmp/shizuku/shizuku.json.migrated");
 
+    private static final ShizukuConfigJournal JOURNAL = new ShizukuConfigJournal(new File("/data/local/tmp/shizuku/shizuku.journal"));
+
+    /**
+     * Loads the config from the legacy JSON file, only used for migrating to the journal.
+     */
     public static ShizukuConfig load() {
+        return load(ATOMIC_FILE);
+    }
+
+    @Nullable
+    private static ShizukuConfig load(AtomicFile file) {
         FileInputStream stream;
         try {
-            stream = ATOMIC_FILE.openRead();
+            stream = file.openRead();
         } catch (FileNotFoundException e) {
-            LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
+            LOGGER.i("no existing config file " + file.getBaseFile() + "; starting empty");
             return new ShizukuConfig();
         }
 
@@ -66,48 +68,100 @@ public class ShizukuConfigManager extends ConfigManager {
         return config;
     }
 
-    public static void write(ShizukuConfig config) {
-        synchronized (ATOMIC_FILE) {
-            FileOutputStream stream;
-            try {
-                stream = ATOMIC_FILE.startWrite();
-            } catch (IOException e) {
-                LOGGER.w("failed to write state: " + e);
-                return;
+    private static ShizukuConfig loadOrMigrate() {
+        if (JOURNAL.exists()) {
+            ShizukuConfig config = JOURNAL.load();
+            if (config != null) {
+                return config;
             }
+            return recover();
+        }
 
-            try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
-
-                ATOMIC_FILE.finishWrite(stream);
-                LOGGER.v("config saved");
-            } catch (Throwable tr) {
-                LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
-                ATOMIC_FILE.failWrite(stream);
+        ShizukuConfig config = load();
+        if (config == null) {
+            config = new ShizukuConfig();
+        }
+        if (config.packages == null) {
+            config.packages = new ArrayList<>();
+        }
+
+        JOURNAL.compact(config.packages);
+        if (FILE.exists()) {
+            // Keep the old file around instead of deleting it, in case of a downgrade
+            if (FILE.renameTo(MIGRATED_FILE)) {
+                LOGGER.i("migrated %d entries from %s", config.packages.size(), FILE);
+            } else {
+                LOGGER.w("failed to rename %s", FILE);
             }
         }
+        return config;
+    }
+
+    /**
+     * The journal exists but cannot be read. It is moved aside rather than overwritten, and the
+     * config falls back to the JSON file it was migrated from. Changes made since the migration
+     * are lost, but the grants from before it are not.
+     */
+    private static ShizukuConfig recover() {
+        if (!JOURNAL.moveAside()) {
+            // The journal is left alone and not written, the next start may be able to read it
+            LOGGER.w("journal cannot be read or moved aside, starting empty without saving");
+            return new ShizukuConfig();
+        }
+
+        ShizukuConfig config = null;
+        if (MIGRATED_FILE.exists()) {
+            config = load(new AtomicFile(MIGRATED_FILE));
+        }
+        if (config == null) {
+            config = new ShizukuConfig();
+        }
+        if (config.packages == null) {
+            config.packages = new ArrayList<>();
+        }
+
+        LOGGER.w("recovered %d entries from %s", config.packages.size(), MIGRATED_FILE);
+        JOURNAL.compact(config.packages);
+        return config;
     }
 
-    private final Runnable mWriteRunner = new Runnable() {
+    private final Runnable compactRunner = new Runnable() {
 
         @Override
         public void run() {
-            write(config);
+            synchronized (ShizukuConfigManager.this) {
+                JOURNAL.compact(config.packages);
+            }
         }
     };
 
     private final ShizukuConfig config;
 
-    public ShizukuConfigManager() {
-        this.config = load();
+    // Frozen copies of the entries indexed by uid, replaced as a whole after every change so that
+    // readers never lock
+    private volatile SparseArray<ShizukuConfig.PackageEntry> snapshot = new SparseArray<>();
 
-        boolean changed = false;
+    public ShizukuConfigManager() {
+        this.config = loadOrMigrate();
+        publishLocked();
+    }
 
-        if (config.packages == null) {
-            config.packages = new ArrayList<>();
-            changed = true;
+    private void publishLocked() {
+        SparseArray<ShizukuConfig.PackageEntry> entries = new SparseArray<>(config.packages.size());
+        for (ShizukuConfig.PackageEntry entry : config.packages) {
+            entries.put(entry.uid, entry.frozenCopy());
         }
+        snapshot = entries;
+    }
+
+    /**
+     * Drops entries whose uid or packages have gone and adds packages that already hold the
+     * runtime permission. This checks every client package, so it is not run on the boot path.
+     * Until it finishes, entries are those of the saved file, and permission checks fall back to
+     * the runtime permission for uids that are not in it.
+     */
+    public synchronized void reconcile(List<ClientPackageIndex.Entry> clientPackages) {
+        boolean changed = false;
 
         if (config.version < 2) {
             for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
@@ -154,46 +208,35 @@ public class ShizukuConfigManager extends ConfigManager {
             }
         }
 
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null
-                        || pi.applicationInfo == null
-                        || pi.requestedPermissions == null
-                        || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    continue;
-                }
-
-                int uid = pi.applicationInfo.uid;
-                boolean allowed;
-                try {
-                    allowed = PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
-                } catch (Throwable e) {
-                    LOGGER.w("checkPermission");
-                    continue;
-                }
+        for (ClientPackageIndex.Entry clientPackage : clientPackages) {
+            int uid = clientPackage.uid;
+            boolean allowed;
+            try {
+                allowed = PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
+            } catch (Throwable e) {
+                LOGGER.w("checkPermission");
+                continue;
+            }
 
-                List<String> packages = new ArrayList<>();
-                packages.add(pi.packageName);
+            List<String> packages = new ArrayList<>();
+            packages.add(clientPackage.packageName);
 
-                updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0);
-                changed = true;
-            }
+            updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0);
+            changed = true;
         }
 
         if (changed) {
-            scheduleWriteLocked();
+            JOURNAL.compact(config.packages);
+            publishLocked();
         }
     }
 
-    private void scheduleWriteLocked() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            if (HandlerKt.getWorkerHandler().hasCallbacks(mWriteRunner)) {
-                return;
-            }
-        } else {
-            HandlerKt.getWorkerHandler().removeCallbacks(mWriteRunner);
+    private void scheduleCompactLocked() {
+        if (!JOURNAL.shouldCompact()) {
+            return;
         }
-        HandlerKt.getWorkerHandler().postDelayed(mWriteRunner, WRITE_DELAY);
+        HandlerKt.getWorkerHandler().removeCallbacks(compactRunner);
+        HandlerKt.getWorkerHandler().post(compactRunner);
     }
 
     private ShizukuConfig.PackageEntry findLocked(int uid) {
@@ -205,11 +248,12 @@ public class ShizukuConfigManager extends ConfigManager {
         return null;
     }
 
+    /**
+     * Returns the entry of the uid from the latest snapshot, the entry must not be modified.
+     */
     @Nullable
     public ShizukuConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
-        }
+        return snapshot.get(uid);
     }
 
     private void updateLocked(int uid, List<String> packages, int mask, int values) {
@@ -232,7 +276,9 @@ public class ShizukuConfigManager extends ConfigManager {
                 entry.packages.add(packageName);
             }
         }
-        scheduleWriteLocked();
+        JOURNAL.put(entry, config.packages.size());
+        publishLocked();
+        scheduleCompactLocked();
     }
 
     public void update(int uid, List<String> packages, int mask, int values) {
@@ -247,7 +293,9 @@ public class ShizukuConfigManager extends ConfigManager {
             return;
         }
         config.packages.remove(entry);
-        scheduleWriteLocked();
+        JOURNAL.remove(uid, config.packages.size());
+        publishLocked();
+        scheduleCompactLocked();
     }
 
     public void remove(int uid) {
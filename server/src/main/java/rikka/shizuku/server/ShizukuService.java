@@ -29,14 +29,19 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.collections.ArraysKt;
 import moe.shizuku.api.BinderContainer;
@@ -52,6 +57,7 @@ import rikka.parcelablelist.ParcelableListSlice;
 import rikka.rish.RishConfig;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.shizuku.server.api.IContentProviderUtils;
+import rikka.shizuku.server.ktx.HandlerKt;
 import rikka.shizuku.server.util.HandlerUtil;
 import rikka.shizuku.server.util.UserHandleCompat;
 
@@ -74,24 +80,69 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         DdmHandleAppName.setAppName("shizuku_server", 0);          // DDM(Debugging Data Model)에서 앱 이름을 설정
         RishConfig.setLibraryPath(System.getProperty("shizuku.library.path")); // 라이브러리 경로 설정
 
+        // 스타터가 --handoff로 실행하면 기존 서버를 종료하지 않고 남겨 두므로, 기존 서버의 상태를 넘겨받음
+        boolean handoff = ArraysKt.contains(args, ServerHandoff.ARG_HANDOFF);
+
         Looper.prepareMainLooper();    // 메인 루퍼를 준비 (이벤트 루프를 시작하기 전 단계)
-        new ShizukuService();          // ShizukuService 인스턴스를 생성
+        new ShizukuService(handoff);   // ShizukuService 인스턴스를 생성
         Looper.loop();                 // 이벤트 루프를 시작 (계속해서 메시지 처리)
     }
 
+    // 사용자 서비스 프로세스에 서버 바인더를 넘기기 위해 서비스 매니저에 등록하는 이름의 접두사
+    private static final String SERVER_SERVICE_PREFIX = "shizuku_server_";
+
+    // 서비스 매니저에 등록된 서버 바인더의 이름, 등록하지 못했으면 null
+    private static volatile String serverServiceName;
+
+    // 시스템 서비스 대기 시 재시도 간격 (짧게 시작해서 점점 늘림)
+    private static final long WAIT_SERVICE_INITIAL_DELAY = 20;
+    private static final long WAIT_SERVICE_MAX_DELAY = 500;
+
     /**
      * 시스템 서비스가 시작될 때까지 대기하는 메서드.
      * name으로 전달된 서비스가 null이 아니면 루프를 탈출함.
+     * 1초 고정 대기 대신 짧은 간격부터 시작해 간격을 늘려가며 확인함.
      */
     private static void waitSystemService(String name) {
+        long delay = WAIT_SERVICE_INITIAL_DELAY;
+        long start = SystemClock.elapsedRealtime();
         while (ServiceManager.getService(name) == null) {  // 서비스가 시작되었는지 확인
             try {
-                LOGGER.i("service " + name + " is not started, wait 1s.");  // 로그 기록
-                Thread.sleep(1000);         // 1초 대기 후 다시 시도
+                LOGGER.i("service " + name + " is not started, wait " + delay + "ms.");  // 로그 기록
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, WAIT_SERVICE_MAX_DELAY);
             } catch (InterruptedException e) {
                 LOGGER.w(e.getMessage(), e);      // 예외 발생 시 경고 로그 기록
             }
         }
+        if (delay != WAIT_SERVICE_INITIAL_DELAY) {
+            LOGGER.i("service %s is started after %dms", name, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * 여러 시스템 서비스를 동시에 기다리는 메서드.
+     * 하나씩 차례로 기다리면 대기 시간이 합쳐지므로, 아직 시작되지 않은 서비스마다 스레드를 하나씩 두고
+     * 모두 시작될 때까지 기다림.
+     */
+    private static void waitSystemServices(String... names) {
+        List<Thread> threads = new ArrayList<>();
+        for (String name : names) {
+            if (ServiceManager.getService(name) != null) {
+                continue;   // 이미 시작된 서비스는 건너뜀
+            }
+            Thread thread = new Thread(() -> waitSystemService(name), "wait-" + name);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                LOGGER.w(e.getMessage(), e);
+            }
+        }
     }
 
     /**
@@ -102,6 +153,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return PackageManagerApis.getApplicationInfoNoThrow(MANAGER_APPLICATION_ID, 0, 0);
     }
 
+    /**
+     * 서비스 매니저에 등록된 서버 바인더의 이름을 반환하는 메서드.
+     * 사용자 서비스 프로세스는 이 이름으로 관리 앱을 거치지 않고 서버 바인더를 얻음. 등록하지 못했으면 null.
+     */
+    @Nullable
+    public static String getServerServiceName() {
+        return serverServiceName;
+    }
+
     // 메인 스레드에서 메시지를 처리하기 위한 핸들러 선언
     @SuppressWarnings({"FieldCanBeLocal"})
     private final Handler mainHandler = new Handler(Looper.myLooper());
@@ -110,23 +170,45 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     private final ShizukuClientManager clientManager; // 클라이언트 관리
     private final ShizukuConfigManager configManager; // 설정 관리
     private final int managerAppId; // 관리 앱의 UID
+    private final BinderFanOut binderFanOut = new BinderFanOut(this); // 앱에 바인더를 전송하는 스케줄러
+    private final ClientPackageIndex clientPackageIndex = new ClientPackageIndex(); // Shizuku 권한을 요청하는 패키지 목록
+
+    // 부팅 단계, 각 단계에 도달한 시간(서버 시작 기준)을 기록함
+    private static final int BOOT_STAGE_SYSTEM_SERVICES_READY = 0;
+    private static final int BOOT_STAGE_BINDER_PUBLISHED = 1;
+    private static final int BOOT_STAGE_CLIENTS_NOTIFIED = 2;
+    private static final int BOOT_STAGE_CONFIG_RECONCILED = 3;
+    private static final String[] BOOT_STAGE_NAMES = {
+            "system_services_ready",
+            "binder_published",
+            "clients_notified",
+            "config_reconciled"
+    };
+
+    private final long bootStartTime = SystemClock.elapsedRealtime();
+    private final long[] bootStageTimes = {-1, -1, -1, -1};
 
     /**
      * ShizukuService 생성자.
      * 서비스가 시작되면서 여러 초기화 작업을 수행하고, 클라이언트에게 바인더를 전송하는 작업을 합니다.
      */
     public ShizukuService() {
+        this(false);
+    }
+
+    /**
+     * @param handoff 실행 중인 이전 서버에서 클라이언트와 사용자 서비스를 넘겨받을지 여부
+     */
+    public ShizukuService(boolean handoff) {
         super(); // 부모 클래스 Service의 생성자를 호출
 
         HandlerUtil.setMainHandler(mainHandler); // 메인 핸들러를 설정
 
         LOGGER.i("starting server...");     // 서버 시작 로그 기록
 
-        // 필수 시스템 서비스들이 시작될 때까지 대기
-        waitSystemService("package");
-        waitSystemService(Context.ACTIVITY_SERVICE);
-        waitSystemService(Context.USER_SERVICE);
-        waitSystemService(Context.APP_OPS_SERVICE);
+        // 바인더를 공개하는 데 꼭 필요한 시스템 서비스들이 시작될 때까지 동시에 대기
+        waitSystemServices("package", Context.ACTIVITY_SERVICE, Context.USER_SERVICE);
+        setBootStage(BOOT_STAGE_SYSTEM_SERVICES_READY);
 
         // 관리 앱의 ApplicationInfo 가져오기
         ApplicationInfo ai = getManagerApplicationInfo();
@@ -138,27 +220,148 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         managerAppId = ai.uid; // 관리 앱의 UID 저장
 
         // 설정 및 클라이언트 매니저 초기화
+        // 설정 매니저는 저장된 파일만 읽은 상태이며, 패키지 전체 검사는 아래에서 바인더를 보낸 뒤에 수행함
         configManager = getConfigManager();
         clientManager = getClientManager();
 
+        // 이전 서버의 상태를 넘겨받음, 이 호출이 끝나면 이전 서버는 종료되어 있음
+        // 이전 서버의 바인더가 살아 있으면 앱이 새 바인더를 받지 않으므로 바인더 전송보다 먼저 수행해야 함
+        List<ServerHandoff.Client> handedOffClients = handoff ? takeOverPreviousServer() : null;
+
         // APK 파일 변경 감시 시작 (관리 앱이 제거되면 서버 종료)
-        ApkChangedObservers.start(ai.sourceDir, () -> {
-            if (getManagerApplicationInfo() == null) {
-                LOGGER.w("manager app is uninstalled in user 0, exiting...");
-                System.exit(ServerConstants.MANAGER_APP_NOT_FOUND); // 관리 앱이 제거되면 서버 종료
+        ApkChangedObservers.start(ai.sourceDir, new ApkChangedListener() {
+            @Override
+            public void onApkChanged() {
+                ApplicationInfo newAi = getManagerApplicationInfo();
+                if (newAi == null) {
+                    LOGGER.w("manager app is uninstalled in user 0, exiting...");
+                    System.exit(ServerConstants.MANAGER_APP_NOT_FOUND); // 관리 앱이 제거되면 서버 종료
+                    return;
+                }
+                // 관리 앱이 업데이트된 경우 새 APK 경로를 다시 감시함
+                ApkChangedObservers.start(newAi.sourceDir, this);
             }
         });
 
         // 바인더 등록
         BinderSender.register(this);
 
+        // 사용자 서비스 프로세스가 관리 앱의 provider 없이 서버 바인더를 얻을 수 있도록 서비스 매니저에 등록
+        publishServerService();
+
         // 메인 핸들러를 통해 클라이언트와 관리자에게 바인더 전송
+        // 관리자가 서버 시작을 가장 먼저 기다리므로 관리자에게 먼저 전송함
+        // 실제 전송은 BinderFanOut이 우선순위에 따라 병렬로 수행함
         mainHandler.post(() -> {
-            sendBinderToClient();  // 클라이언트에게 바인더 전송
-            sendBinderToManager(); // 관리자에게 바인더 전송
+            sendBinderToManager(() -> setBootStage(BOOT_STAGE_BINDER_PUBLISHED)); // 관리자에게 바인더 전송
+
+            // 저장된 클라이언트 패키지 목록을 바뀐 패키지만 확인하여 갱신한 뒤 클라이언트에게 바인더 전송
+            // 상태를 넘겨받은 경우 이전 서버에 연결되어 있던 클라이언트에게만 보냄
+            // (나머지 앱은 이전 서버의 바인더를 갖고 있지 않으며, 프로세스가 시작되면 BinderSender가 보냄)
+            clientPackageIndex.reconcile();
+            if (handedOffClients != null) {
+                sendBinderToClients(handedOffClients);
+            } else {
+                sendBinderToClient();
+            }
+            binderFanOut.runWhenIdle(() -> setBootStage(BOOT_STAGE_CLIENTS_NOTIFIED));
+
+            // 설정 정리는 워커 스레드에서 수행하여 바인더 공개를 늦추지 않도록 함
+            // 권한 확인에 appops 서비스가 쓰이므로 여기서 함께 기다림
+            HandlerKt.getWorkerHandler().post(() -> {
+                waitSystemService(Context.APP_OPS_SERVICE);
+                configManager.reconcile(clientPackageIndex.getEntries(ClientPackageIndex.ROLE_CLIENT));
+                // 정리 전에 연결된 클라이언트는 런타임 권한으로 허용 여부를 정했으므로 설정 기준으로 다시 맞춤
+                clientManager.onConfigReconciled();
+                setBootStage(BOOT_STAGE_CONFIG_RECONCILED);
+            });
         });
     }
 
+    /**
+     * 이전 서버에서 클라이언트와 사용자 서비스를 넘겨받는 메서드.
+     * 넘겨받은 것이 없으면 null을 반환하며, 이 경우 이전 서버는 강제 종료되어 있음.
+     */
+    @Nullable
+    private List<ServerHandoff.Client> takeOverPreviousServer() {
+        Parcel reply = ServerHandoff.request();
+        if (reply == null) {
+            return null;
+        }
+
+        try {
+            List<ServerHandoff.Client> clients = ServerHandoff.readClients(reply);
+            int services = getUserServiceManager().adoptUserServices(reply);
+
+            // 권한은 설정에서 다시 읽으므로, 넘겨받는 사이에 바뀐 클라이언트만 로그로 남김
+            for (ServerHandoff.Client client : clients) {
+                ClientRecord record;
+                synchronized (this) {
+                    record = clientManager.addClient(client.uid, client.pid, client.application, client.packageName, client.apiVersion);
+                }
+                if (record != null && record.allowed != client.allowed) {
+                    LOGGER.i("handoff: permission of %s (uid %d) changed to %s", client.packageName, client.uid, Boolean.toString(record.allowed));
+                }
+            }
+
+            LOGGER.i("handoff: %d clients, %d user services", clients.size(), services);
+            return clients;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "handoff");
+            return null;
+        } finally {
+            reply.recycle();
+        }
+    }
+
+    /**
+     * 서버 바인더를 서비스 매니저에 등록하는 메서드.
+     * SELinux 정책상 shell은 서비스를 등록할 수 없으므로 보통 root로 실행 중일 때만 성공하며,
+     * 실패하면 사용자 서비스 프로세스는 이전처럼 관리 앱의 provider로 서버 바인더를 얻음.
+     * 서버 프로세스가 종료되면 서비스 매니저가 등록을 제거함.
+     */
+    private void publishServerService() {
+        String name = SERVER_SERVICE_PREFIX + android.os.Process.myPid();
+        try {
+            ServiceManager.addService(name, this);
+        } catch (Throwable tr) {
+            LOGGER.i("unable to publish server binder: %s", tr.getMessage());
+            return;
+        }
+
+        // 일부 버전에서는 거부되어도 예외 없이 로그만 남기므로 실제로 등록되었는지 확인함
+        if (ServiceManager.getService(name) != null) {
+            serverServiceName = name;
+            LOGGER.i("server binder published as %s", name);
+        } else {
+            LOGGER.i("unable to publish server binder");
+        }
+    }
+
+    /**
+     * 부팅 단계를 기록하는 메서드. 서버 시작부터 각 단계까지 걸린 시간을 로그로 남기고 dump에 표시함.
+     */
+    private void setBootStage(int stage) {
+        synchronized (bootStageTimes) {
+            bootStageTimes[stage] = SystemClock.elapsedRealtime() - bootStartTime;
+        }
+        LOGGER.i("boot: %s after %dms", BOOT_STAGE_NAMES[stage], bootStageTimes[stage]);
+    }
+
+    @Override
+    protected void onDump(PrintWriter pw, String[] args) {
+        super.onDump(pw, args);
+
+        pw.println();
+        pw.println("Boot stages:");
+        synchronized (bootStageTimes) {
+            for (int i = 0; i < BOOT_STAGE_NAMES.length; i++) {
+                long time = bootStageTimes[i];
+                pw.println("  " + BOOT_STAGE_NAMES[i] + ": " + (time >= 0 ? time + "ms" : "pending"));
+            }
+        }
+    }
+
     // 이하의 메서드들은 부모 클래스에서 상속받은 메서드들을 재정의하는 부분입니다.
     @Override
     public ShizukuUserServiceManager onCreateUserServiceManager() {
@@ -227,7 +430,10 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
      */
     @Override
     public void attachUserService(IBinder binder, Bundle options) {
-        enforceManagerPermission("func");    // 관리자 권한 확인
+        // 사용자 서비스 프로세스는 서버와 같은 UID로 실행되므로 매니저를 거치지 않고 직접 연결할 수 있음
+        if (Binder.getCallingUid() != OsUtils.getUid()) {
+            enforceManagerPermission("func");    // 관리자 권한 확인
+        }
 
         super.attachUserService(binder, options); // 부모 클래스의 attachUserService 호출
     }
@@ -270,7 +476,9 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         // 호출자의 UID와 PID를 사용하여 클라이언트 매니저에서 클라이언트를 찾음
         // 해당 클라이언트가 없으면 새로운 클라이언트를 추가해야 함
-        if (clientManager.findClient(callingUid, callingPid) == null) {
+        // 이전 서버에서 넘겨받은 클라이언트는 이미 기록이 있으므로 그대로 사용함
+        clientRecord = clientManager.findClient(callingUid, callingPid);
+        if (clientRecord == null) {
             synchronized (this) { // 여러 스레드에서 동시에 접근하지 않도록 동기화 처리
                 // 클라이언트 매니저에 새로운 클라이언트를 추가하고, 그 기록을 반환
                 clientRecord = clientManager.addClient(callingUid, callingPid, application, requestPackageName, apiVersion);
@@ -546,7 +754,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 ShizukuConfig.PackageEntry entry = configManager.find(uid);
                 // 해당 UID에 대한 플래그 설정이 있는지 확인
                 if (entry != null) {
-                    if (entry.packages != null && !entry.packages.contains(pi.packageName))
+                    if (entry.packages != null && !entry.containsPackage(pi.packageName))
                         continue; // 설정된 패키지가 포함되지 않으면 건너뜀
                     flags = entry.flags & ConfigManager.MASK_PERMISSION; // 플래그를 적용
                 }
@@ -581,59 +789,93 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE); // 결과를 반환
             return true;
         }
+        // 새 서버가 상태를 넘겨받는 트랜잭션, 같은 UID(또는 root)로 실행된 새 서버만 호출할 수 있음
+        // 사용자 서비스 프로세스도 같은 UID로 바인더를 갖고 있으므로 호출한 프로세스가 새 서버인지 확인함
+        if (code == ServerConstants.BINDER_TRANSACTION_handoff) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int callingUid = Binder.getCallingUid();
+            int callingPid = Binder.getCallingPid();
+            if (callingUid != OsUtils.getUid() && callingUid != 0) {
+                throw new SecurityException("handoff from uid " + callingUid + " is not allowed");
+            }
+            if (!ServerHandoff.isNewServer(callingPid)) {
+                throw new SecurityException("handoff from pid " + callingPid + " is not allowed");
+            }
+
+            LOGGER.i("handing off to the new server (pid %d)", Binder.getCallingPid());
+            reply.writeNoException();
+            ServerHandoff.writeState(reply, clientManager.getClients(), getUserServiceManager());
+
+            // 응답이 전달된 뒤 종료
+            mainHandler.postDelayed(() -> {
+                LOGGER.i("exit after handoff");
+                System.exit(0);
+            }, ServerHandoff.EXIT_DELAY);
+            return true;
+        }
         // 그 외의 경우는 부모 클래스의 onTransact를 호출
         return super.onTransact(code, data, reply, flags);
     }
 
+    BinderFanOut getBinderFanOut() {
+        return binderFanOut;
+    }
+
+    ClientPackageIndex getClientPackageIndex() {
+        return clientPackageIndex;
+    }
+
     // 모든 사용자에게 바인더를 전송하는 메서드
+    // 실행 중인 앱에 먼저 보내고, 나머지 앱은 그 뒤에 보냄
+    // 대상 패키지는 전체 패키지 목록 대신 클라이언트 패키지 목록에서 가져옴
     void sendBinderToClient() {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
+        Set<String> runningPackages = BinderFanOut.getRunningPackages();
+        for (ClientPackageIndex.Entry entry : clientPackageIndex.getEntries(ClientPackageIndex.ROLE_CLIENT)) {
+            int priority = runningPackages.contains(entry.packageName) ? BinderFanOut.PRIORITY_RUNNING : BinderFanOut.PRIORITY_OTHER;
+            binderFanOut.send(entry.packageName, entry.userId, priority, null); // 바인더 전송 예약
         }
     }
 
-    // 특정 사용자에게 바인더를 전송하는 메서드
-    private static void sendBinderToClient(Binder binder, int userId) {
-        // 각 사용자의 패키지 목록을 가져옴
-        try {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null || pi.requestedPermissions == null)
-                    continue; // 패키지 또는 권한 정보가 없으면 건너뜀
-
-                // 해당 패키지가 Shizuku 권한을 요청했는지 확인
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    sendBinderToUserApp(binder, pi.packageName, userId); // 바인더 전송
-                }
+    // 이전 서버에서 넘겨받은 클라이언트에게만 바인더를 전송하는 메서드
+    // 같은 패키지의 여러 프로세스는 한 번만 보냄 (다른 프로세스는 제공자 프로세스에게서 받음)
+    private void sendBinderToClients(List<ServerHandoff.Client> clients) {
+        Set<String> sent = new HashSet<>();
+        for (ServerHandoff.Client client : clients) {
+            if (MANAGER_APPLICATION_ID.equals(client.packageName)) {
+                continue; // 관리 앱은 sendBinderToManager에서 보냄
+            }
+            int userId = UserHandleCompat.getUserId(client.uid);
+            if (sent.add(userId + ":" + client.packageName)) {
+                binderFanOut.send(client.packageName, userId, BinderFanOut.PRIORITY_RUNNING, null);
             }
-        } catch (Throwable tr) {
-            // 패키지 목록을 가져오는 도중 예외 발생 시 로그 기록
-            LOGGER.e("exception when call getInstalledPackages", tr);
         }
     }
 
     // 관리자에게 바인더를 전송하는 메서드
-    void sendBinderToManager() {
-        sendBinderToManger(this); // 현재 인스턴스를 바인더로 사용하여 전송
-    }
-
-    // 특정 사용자에게 바인더를 전송하는 메서드 (관리자용)
-    private static void sendBinderToManger(Binder binder) {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToManger(binder, userId); // 각 사용자에게 바인더 전송
+    // onDone은 모든 사용자의 관리 앱에 대한 전송이 끝나면 호출됨
+    void sendBinderToManager(@Nullable Runnable onDone) {
+        List<Integer> userIds = UserManagerApis.getUserIdsNoThrow();
+        if (userIds.isEmpty() && onDone != null) {
+            onDone.run();
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(userIds.size());
+        for (int userId : userIds) {
+            binderFanOut.send(MANAGER_APPLICATION_ID, userId, BinderFanOut.PRIORITY_MANAGER, () -> {
+                if (remaining.decrementAndGet() == 0 && onDone != null) {
+                    onDone.run();
+                }
+            });
         }
     }
 
-    // 특정 사용자와 관리 앱에 바인더 전송
-    static void sendBinderToManger(Binder binder, int userId) {
-        sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId); // 관리자 패키지에 바인더 전송
-    }
-
-    // 주어진 패키지와 사용자에게 바인더를 전송하는 메서드
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId) {
-        sendBinderToUserApp(binder, packageName, userId, true);
-    }
-
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId, boolean retry) {
+    /**
+     * 주어진 패키지와 사용자에게 바인더를 전송하는 메서드. {@link BinderFanOut}의 작업 스레드에서 호출됨.
+     * 제공자가 죽어 있으면 forceStopIfDead에 따라 앱을 강제 종료하고, 재시도는 호출한 쪽에서 지연 후 수행함.
+     *
+     * @return {@link BinderFanOut#RESULT_SENT}, {@link BinderFanOut#RESULT_FAILED} 또는 {@link BinderFanOut#RESULT_PROVIDER_DEAD}
+     */
+    static int sendBinderToUserApp(Binder binder, String packageName, int userId, boolean forceStopIfDead) {
         try {
             // DeviceIdleControllerApis를 사용하여 해당 패키지를 임시 화이트리스트에 추가, 30초 동안 절전 모드에서 제외
             DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(packageName, 30 * 1000, userId,
@@ -677,28 +919,24 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             // 제공된 ContentProvider가 없으면 오류 로그를 남기고 메서드를 종료
             if (provider == null) {
                 LOGGER.e("provider is null %s %d", name, userId);
-                return;
+                return BinderFanOut.RESULT_FAILED;
             }
             // 가져온 ContentProvider의 바인더가 살아 있는지 확인, pingBinder()가 false이면 죽은 것으로 간주
             if (!provider.asBinder().pingBinder()) {
                 LOGGER.e("provider is dead %s %d", name, userId);
 
-                // 만약 retry가 true라면 Shizuku 앱을 강제 종료하고 다시 시도
-                if (retry) {
+                // 첫 시도라면 Shizuku 앱을 강제 종료하여 다음 시도에서 제공자가 다시 생성되도록 함
+                if (forceStopIfDead) {
                     // For unknown reason, sometimes this could happens
                     // Kill Shizuku app and try again could work
                     ActivityManagerApis.forceStopPackageNoThrow(packageName, userId); // 패키지 강제 종료
                     LOGGER.e("kill %s in user %d and try again", packageName, userId);
-                    // 1초 대기 후 다시 시도
-                    Thread.sleep(1000);
-                    // 다시 시도할 때 retry는 false로 설정
-                    sendBinderToUserApp(binder, packageName, userId, false);
                 }
-                return;
+                return BinderFanOut.RESULT_PROVIDER_DEAD;
             }
 
-            // retry가 false로 설정된 경우 성공했음을 알리는 로그를 출력
-            if (!retry) {
+            // 첫 시도가 아닌데 성공한 경우 재시도가 효과가 있었음을 알리는 로그를 출력
+            if (!forceStopIfDead) {
                 LOGGER.e("retry works");
             }
 
@@ -711,13 +949,16 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             // 응답이 null이 아니면 바인더 전송이 성공했음을 알리는 로그 출력
             if (reply != null) {
                 LOGGER.i("send binder to user app %s in user %d", packageName, userId);
+                return BinderFanOut.RESULT_SENT;
             } else {
                 // 실패한 경우 경고 로그를 남김
                 LOGGER.w("failed to send binder to user app %s in user %d", packageName, userId);
+                return BinderFanOut.RESULT_FAILED;
             }
         } catch (Throwable tr) {
             // 바인더 전송 중 오류 발생 시 로그를 기록
             LOGGER.e(tr, "failed send binder to user app %s in user %d", packageName, userId);
+            return BinderFanOut.RESULT_FAILED;
         } finally {
             // provider가 null이 아니면 ContentProvider 연결을 해제
             if (provider != null) {
@@ -736,7 +977,26 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
     @Override
     public void dispatchPackageChanged(Intent intent) throws RemoteException {
-        // 이 메서드는 Sui(특정 환경에서만 실행되는 기능)를 위한 메서드이며, 현재 아무 작업도 하지 않음
+        // Sui에서는 system_server가, Shizuku에서는 관리 앱이 패키지 변경 브로드캐스트를 전달함
+        int callingUid = Binder.getCallingUid();
+        if (UserHandleCompat.getAppId(callingUid) != 1000 /* Process.SYSTEM_UID */) {
+            enforceManagerPermission("dispatchPackageChanged");
+        }
+
+        if (intent == null || intent.getData() == null) {
+            return;
+        }
+
+        String packageName = intent.getData().getSchemeSpecificPart();
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        if (packageName == null || uid == -1) {
+            return;
+        }
+
+        // 설치, 업데이트, 제거 모두 패키지 정보를 다시 읽어 클라이언트 패키지 목록을 갱신함
+        LOGGER.d("dispatchPackageChanged: %s %s", intent.getAction(), packageName);
+        int userId = UserHandleCompat.getUserId(uid);
+        HandlerKt.getWorkerHandler().post(() -> clientPackageIndex.onPackageChanged(packageName, userId));
     }
 
     @Override
@@ -4,9 +4,6 @@ import android.content.pm.PackageInfo;
 import android.util.ArrayMap;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 
 import moe.shizuku.starter.ServiceStarter;
@@ -17,14 +14,13 @@ import rikka.shizuku.server.util.UserHandleCompat;
 public class ShizukuUserServiceManager extends UserServiceManager {
 
     private final Map<UserServiceRecord, ApkChangedListener> apkChangedListeners = new ArrayMap<>();
-    private final Map<String, List<UserServiceRecord>> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
 
     public ShizukuUserServiceManager() {
         super();
     }
 
     @Override
-    public String getUserServiceStartCmd(
+    public String[] getUserServiceStartArgs(
             UserServiceRecord record, String key, String token, String packageName,
             String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug) {
 
@@ -32,10 +28,19 @@ public class ShizukuUserServiceManager extends UserServiceManager {
         if (use32Bits && new File("/system/bin/app_process32").exists()) {
             appProcess = "/system/bin/app_process32";
         }
-        return ServiceStarter.commandForUserService(
+        return ServiceStarter.argsForUserService(
                 appProcess,
                 ShizukuService.getManagerApplicationInfo().sourceDir,
-                token, packageName, classname, processNameSuffix, callingUid, debug);
+                token, packageName, classname, processNameSuffix, callingUid, debug,
+                ShizukuService.getServerServiceName());
+    }
+
+    @Override
+    public String[] getUserServiceStandbyArgs() {
+        return ServiceStarter.argsForStandby(
+                "/system/bin/app_process",
+                ShizukuService.getManagerApplicationInfo().sourceDir,
+                ShizukuService.getServerServiceName());
     }
 
     @Override
@@ -60,8 +65,9 @@ public class ShizukuUserServiceManager extends UserServiceManager {
                     LOGGER.v("remove record %s because package %s has been removed", record.token, packageName);
                     record.removeSelf();
                 } else {
+                    // The old directory is no longer watched, watching the new one reuses the
+                    // observer of another record of the same package if there is one
                     LOGGER.v("update apk listener for record %s since package %s is upgrading", record.token, packageName);
-                    ApkChangedObservers.stop(this);
                     ApkChangedObservers.start(newSourceDir, this);
                 }
             }
@@ -6,59 +6,109 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
-import java.util.Locale;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import moe.shizuku.api.BinderContainer;
+import moe.shizuku.server.IShizukuService;
 import moe.shizuku.starter.util.IContentProviderCompat;
 import rikka.hidden.compat.ActivityManagerApis;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.shizuku.server.UserService;
+import rikka.shizuku.server.UserServiceStartTrace;
 
 public class ServiceStarter {
 
     private static final String TAG = "ShizukuServiceStarter";
 
+    private static final String MANAGER_APPLICATION_ID = "moe.shizuku.privileged.api";
     private static final String EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER";
+    private static final String METHOD_GET_BINDER = "getBinder";
 
-    public static final String DEBUG_ARGS;
+    public static final String[] DEBUG_ARGS;
 
     static {
         int sdk = Build.VERSION.SDK_INT;
         if (sdk >= 30) {
-            DEBUG_ARGS = "-Xcompiler-option" + " --debuggable" +
-                    " -XjdwpProvider:adbconnection" +
-                    " -XjdwpOptions:suspend=n,server=y";
+            DEBUG_ARGS = new String[]{"-Xcompiler-option", "--debuggable",
+                    "-XjdwpProvider:adbconnection",
+                    "-XjdwpOptions:suspend=n,server=y"};
         } else if (sdk >= 28) {
-            DEBUG_ARGS = "-Xcompiler-option" + " --debuggable" +
-                    " -XjdwpProvider:internal" +
-                    " -XjdwpOptions:transport=dt_android_adb,suspend=n,server=y";
+            DEBUG_ARGS = new String[]{"-Xcompiler-option", "--debuggable",
+                    "-XjdwpProvider:internal",
+                    "-XjdwpOptions:transport=dt_android_adb,suspend=n,server=y"};
         } else {
-            DEBUG_ARGS = "-Xcompiler-option" + " --debuggable" +
-                    " -agentlib:jdwp=transport=dt_android_adb,suspend=n,server=y";
+            DEBUG_ARGS = new String[]{"-Xcompiler-option", "--debuggable",
+                    "-agentlib:jdwp=transport=dt_android_adb,suspend=n,server=y"};
         }
     }
 
-    private static final String USER_SERVICE_CMD_FORMAT = "(CLASSPATH='%s' %s%s /system/bin " +
-            "--nice-name='%s' moe.shizuku.starter.ServiceStarter " +
-            "--token='%s' --package='%s' --class='%s' --uid=%d%s)&";
+    private static final String STANDBY_PROCESS_NAME = "shizuku_user_service_standby";
+
+    // Name the server binder is published as in service manager, so it can be taken from there
+    // instead of from the manager app
+    private static final String ARG_SERVER_SERVICE = "--server-service=";
+
+    // How long to wait for a new server when the server dies, it may be replaced by a new server
+    // that has taken over the services of this process
+    private static final long RECONNECT_TIMEOUT = 10 * 1000;
+    private static final long RECONNECT_INTERVAL = 200;
 
     // DeathRecipient will automatically be unlinked when all references to the
     // binder is dropped, so we hold the reference here.
     @SuppressWarnings("FieldCanBeLocal")
     private static IBinder shizukuBinder;
 
-    public static String commandForUserService(String appProcess, String managerApkPath, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug) {
+    // Services attached to the server, to attach again to a new server
+    private static final List<Pair<IBinder, String>> attachedServices = new ArrayList<>();
+
+    public static String[] argsForUserService(String appProcess, String managerApkPath, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug, @Nullable String serverService) {
         String processName = String.format("%s:%s", packageName, processNameSuffix);
-        return String.format(Locale.ENGLISH, USER_SERVICE_CMD_FORMAT,
-                managerApkPath, appProcess, debug ? (" " + DEBUG_ARGS) : "",
-                processName,
-                token, packageName, classname, callingUid, debug ? (" " + "--debug-name=" + processName) : "");
+
+        List<String> args = new ArrayList<>();
+        args.add(appProcess);
+        args.add("-Djava.class.path=" + managerApkPath);
+        if (debug) {
+            Collections.addAll(args, DEBUG_ARGS);
+        }
+        args.add("/system/bin");
+        args.add("--nice-name=" + processName);
+        args.add(ServiceStarter.class.getName());
+        Collections.addAll(args, UserService.createArgs(token, packageName, classname, callingUid, debug ? processName : null));
+        if (serverService != null) {
+            args.add(ARG_SERVER_SERVICE + serverService);
+        }
+        return args.toArray(new String[0]);
+    }
+
+    public static String[] argsForStandby(String appProcess, String managerApkPath, @Nullable String serverService) {
+        List<String> args = new ArrayList<>();
+        args.add(appProcess);
+        args.add("-Djava.class.path=" + managerApkPath);
+        args.add("/system/bin");
+        args.add("--nice-name=" + STANDBY_PROCESS_NAME);
+        args.add(ServiceStarter.class.getName());
+        args.add("--standby");
+        if (serverService != null) {
+            args.add(ARG_SERVER_SERVICE + serverService);
+        }
+        return args.toArray(new String[0]);
     }
 
     public static void main(String[] args) {
+        long[] trace = new long[UserServiceStartTrace.PHASE_COUNT];
+        UserServiceStartTrace.mark(trace, UserServiceStartTrace.PHASE_MAIN);
+
         if (Looper.getMainLooper() == null) {
             Looper.prepareMainLooper();
         }
@@ -67,7 +117,34 @@ public class ServiceStarter {
         String token;
 
         UserService.setTag(TAG);
-        Pair<IBinder, String> result = UserService.create(args);
+
+        // Take the server binder from service manager when the server could publish it there, so
+        // the service is attached with a single call to the server
+        setServerBinder(getPublishedServerBinder(args));
+
+        if (args.length > 0 && "--standby".equals(args[0])) {
+            UserService.prepare();
+            // Get the server binder now, so the service can be attached with a single call
+            // once assigned, without going through the manager app at that point
+            if (shizukuBinder == null) {
+                setServerBinder(requestServerBinder());
+            }
+
+            Log.i(TAG, "standby");
+            args = UserService.awaitArgs();
+            if (args == null) {
+                System.exit(0);
+                return;
+            }
+
+            for (String arg : args) {
+                if (arg.startsWith("--nice-name=")) {
+                    UserService.setProcessName(arg.substring(12));
+                }
+            }
+        }
+
+        Pair<IBinder, String> result = UserService.create(args, trace);
 
         if (result == null) {
             System.exit(1);
@@ -77,22 +154,191 @@ public class ServiceStarter {
         service = result.first;
         token = result.second;
 
-        if (!sendBinder(service, token)) {
+        if (!attachUserService(service, token, trace)) {
             System.exit(1);
         }
 
+        if (Arrays.asList(args).contains(UserService.ARG_SHARED_PROCESS)) {
+            new Thread(ServiceStarter::hostSharedServices, "SharedServices").start();
+        }
+
         Looper.loop();
         System.exit(0);
 
         Log.i(TAG, "service exited");
     }
 
+    private static void hostSharedServices() {
+        String[] args;
+        while ((args = UserService.awaitArgs()) != null) {
+            long[] trace = new long[UserServiceStartTrace.PHASE_COUNT];
+            Pair<IBinder, String> result = UserService.create(args, trace);
+            if (result == null) {
+                continue;
+            }
+
+            if (!attachUserService(result.first, result.second, trace)) {
+                Log.w(TAG, "unable to send binder of " + result.second);
+            }
+        }
+    }
+
+    private static boolean attachUserService(IBinder binder, String token, long[] trace) {
+        if (shizukuBinder == null) {
+            setServerBinder(requestServerBinder());
+        }
+
+        boolean attached = false;
+        if (shizukuBinder != null) {
+            try {
+                Bundle options = new Bundle();
+                options.putString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN, token);
+                options.putLongArray(ShizukuApiConstants.USER_SERVICE_ARG_START_TRACE, trace);
+                IShizukuService.Stub.asInterface(shizukuBinder).attachUserService(binder, options);
+                Log.i(TAG, "attached to server");
+                attached = true;
+            } catch (Throwable tr) {
+                // Servers before direct attach only accept this from the manager
+                Log.w(TAG, "attachUserService", tr);
+            }
+        }
+
+        if (!attached) {
+            attached = sendBinder(binder, token);
+        }
+
+        if (attached) {
+            synchronized (attachedServices) {
+                attachedServices.add(new Pair<>(binder, token));
+            }
+        }
+        return attached;
+    }
+
+    private static void setServerBinder(IBinder binder) {
+        if (binder == null || shizukuBinder == binder) {
+            return;
+        }
+
+        try {
+            binder.linkToDeath(() -> new Thread(ServiceStarter::onServerDied, "Reconnect").start(), 0);
+            shizukuBinder = binder;
+        } catch (RemoteException e) {
+            Log.w(TAG, "server binder is dead");
+        }
+    }
+
+    /**
+     * A server restarted by the starter takes over the services of the old one. Wait for it and
+     * attach again, a server that does not know the services rejects them and this process exits.
+     */
+    private static void onServerDied() {
+        List<Pair<IBinder, String>> services;
+        synchronized (attachedServices) {
+            services = new ArrayList<>(attachedServices);
+        }
+
+        if (services.isEmpty()) {
+            Log.i(TAG, "exiting...");
+            System.exit(0);
+            return;
+        }
+
+        IBinder oldBinder = shizukuBinder;
+        IBinder newBinder = null;
+        long deadline = SystemClock.elapsedRealtime() + RECONNECT_TIMEOUT;
+        while (SystemClock.elapsedRealtime() < deadline) {
+            IBinder binder = requestServerBinder();
+            if (binder != null && binder != oldBinder && binder.pingBinder()) {
+                newBinder = binder;
+                break;
+            }
+            SystemClock.sleep(RECONNECT_INTERVAL);
+        }
+
+        if (newBinder == null) {
+            Log.i(TAG, "no new server, exiting...");
+            System.exit(0);
+            return;
+        }
+
+        int attached = 0;
+        for (Pair<IBinder, String> service : services) {
+            try {
+                Bundle options = new Bundle();
+                options.putString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN, service.second);
+                IShizukuService.Stub.asInterface(newBinder).attachUserService(service.first, options);
+                attached++;
+            } catch (Throwable tr) {
+                Log.w(TAG, "service " + service.second + " is not taken over", tr);
+            }
+        }
+
+        if (attached == 0) {
+            Log.i(TAG, "exiting...");
+            System.exit(0);
+            return;
+        }
+
+        Log.i(TAG, "attached to new server");
+        setServerBinder(newBinder);
+    }
+
+    @Nullable
+    private static IBinder getPublishedServerBinder(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ARG_SERVER_SERVICE)) {
+                try {
+                    return ServiceManager.getService(arg.substring(ARG_SERVER_SERVICE.length()));
+                } catch (Throwable tr) {
+                    Log.w(TAG, "failed to get published server binder", tr);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static IBinder requestServerBinder() {
+        String name = MANAGER_APPLICATION_ID + ".shizuku";
+        int userId = 0;
+        IContentProvider provider = null;
+
+        try {
+            provider = ActivityManagerApis.getContentProviderExternal(name, userId, null, name);
+            if (provider == null) {
+                Log.e(TAG, String.format("provider is null %s %d", name, userId));
+                return null;
+            }
+
+            Bundle reply = IContentProviderCompat.call(provider, null, null, name, METHOD_GET_BINDER, null, new Bundle());
+            if (reply == null) {
+                return null;
+            }
+
+            reply.setClassLoader(BinderContainer.class.getClassLoader());
+            BinderContainer container = reply.getParcelable(EXTRA_BINDER);
+            return container != null ? container.binder : null;
+        } catch (Throwable tr) {
+            Log.w(TAG, "failed to get server binder", tr);
+            return null;
+        } finally {
+            if (provider != null) {
+                try {
+                    ActivityManagerApis.removeContentProviderExternal(name, null);
+                } catch (Throwable tr) {
+                    Log.w(TAG, "removeContentProviderExternal", tr);
+                }
+            }
+        }
+    }
+
     private static boolean sendBinder(IBinder binder, String token) {
         return sendBinder(binder, token, true);
     }
 
     private static boolean sendBinder(IBinder binder, String token, boolean retry) {
-        String packageName = "moe.shizuku.privileged.api";
+        String packageName = MANAGER_APPLICATION_ID;
         String name = packageName + ".shizuku";
         int userId = 0;
         IContentProvider provider = null;
@@ -134,11 +380,7 @@ public class ServiceStarter {
                 BinderContainer container = reply.getParcelable(EXTRA_BINDER);
 
                 if (container != null && container.binder != null && container.binder.pingBinder()) {
-                    shizukuBinder = container.binder;
-                    shizukuBinder.linkToDeath(() -> {
-                        Log.i(TAG, "exiting...");
-                        System.exit(0);
-                    }, 0);
+                    setServerBinder(container.binder);
                     return true;
                 } else {
                     Log.w(TAG, "server binder not received");